@@ -0,0 +1,248 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the launch path of {@link ShellScriptSCM}, run against a
+ * local {@link Launcher} and the real <tt>/bin/sh</tt>.
+ *
+ * <p>
+ * Run with <tt>mvn -Pbenchmark test-compile exec:exec</tt>.  The command
+ * line benchmarks report the time per operation.  The benchmarks running a
+ * shell report their throughput, next to the number of processes the
+ * launcher started per second as <tt>spawns</tt>; the processes per call
+ * are the ratio of the two.  The allocations are reported by the
+ * <tt>gc</tt> profiler enabled in the profile.  Processes started by a
+ * warm shell do not go through the launcher and are not counted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LaunchBenchmark {
+
+	/**
+	 * The polling and executed shell.
+	 */
+	private static final String SCRIPT = "exit 0";
+
+	/**
+	 * The checkout shell, overriding the interpreter.
+	 */
+	private static final String INTERPRETER_SCRIPT = "#!/bin/sh -e\nexit 0";
+
+	private Harness harness;
+	private ShellScriptSCM scm;
+	private FreeStyleProject project;
+	private FilePath workspace;
+	private FilePath script;
+	private CountingLauncher launcher;
+	private TaskListener listener;
+	private Map<String,String> env;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		harness = new Harness();
+		harness.start();
+
+		// every poll has to run the polling shell
+		getDescriptor().setPollingCacheTtl(0);
+
+		scm = newSCM(false);
+		project = harness.createProject();
+		project.setScm(scm);
+
+		workspace = new FilePath(Util.createTempDir());
+		script = workspace.child("script.sh");
+		listener = new StreamTaskListener(new NullStream());
+		launcher = new CountingLauncher(listener);
+		env = ScriptEnvironment.forPoll(project, workspace);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		workspace.deleteRecursive();
+		harness.stop();
+	}
+
+	@Benchmark
+	public String[] buildCommandLine() {
+		return scm.buildCommandLine(SCRIPT, script);
+	}
+
+	@Benchmark
+	public String[] buildCommandLineWithInterpreter() {
+		return scm.buildCommandLine(INTERPRETER_SCRIPT, script);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int execute(Cache cache, Spawns spawns) throws IOException, InterruptedException {
+		long before = launcher.spawns.get();
+		int rc = scm.execute(SCRIPT, launcher, workspace, listener, null, 0, env, project.getFullName(), ShellMetrics.POLLING);
+		spawns.spawns += launcher.spawns.get() - before;
+		return rc;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean pollChanges(Cache cache, Polling polling, Spawns spawns) throws IOException, InterruptedException {
+		long before = launcher.spawns.get();
+		boolean changes = polling.scm.pollChanges(project, launcher, workspace, listener);
+		spawns.spawns += launcher.spawns.get() - before;
+		return changes;
+	}
+
+	private ShellScriptSCM newSCM(boolean useWarmShell) {
+		return new ShellScriptSCM(INTERPRETER_SCRIPT, SCRIPT, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, null, null, 0, 0, 0,
+				Boolean.valueOf(useWarmShell), Boolean.FALSE, null, null, 0, null, Boolean.FALSE, 0, null, 0, null);
+	}
+
+	private ShellScriptSCM.DescriptorImpl getDescriptor() {
+		return harness.hudson.getDescriptorByType(ShellScriptSCM.DescriptorImpl.class);
+	}
+
+	/**
+	 * The script cache, for the benchmarks writing scripts.
+	 */
+	@State(Scope.Benchmark)
+	public static class Cache {
+		/**
+		 * The global script cache size, 0 to write a script for every run.
+		 */
+		@Param({"0", "64"})
+		public int scriptCacheSize;
+
+		@Setup(Level.Trial)
+		public void setUp(LaunchBenchmark benchmark) {
+			benchmark.getDescriptor().setScriptCacheSize(scriptCacheSize);
+		}
+	}
+
+	/**
+	 * The job configuration, for the benchmarks polling.
+	 */
+	@State(Scope.Benchmark)
+	public static class Polling {
+		/**
+		 * Whether polls run in a warm shell.
+		 */
+		@Param({"false", "true"})
+		public boolean useWarmShell;
+
+		ShellScriptSCM scm;
+
+		@Setup(Level.Trial)
+		public void setUp(LaunchBenchmark benchmark) throws IOException {
+			scm = benchmark.newSCM(useWarmShell);
+			benchmark.project.setScm(scm);
+		}
+	}
+
+	/**
+	 * The processes started, normalized by time like the throughput.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Spawns {
+		public long spawns;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			spawns = 0;
+		}
+	}
+
+	/**
+	 * A local launcher counting the processes it starts.
+	 */
+	static final class CountingLauncher extends Launcher.LocalLauncher {
+		final AtomicLong spawns = new AtomicLong();
+
+		CountingLauncher(TaskListener listener) {
+			super(listener);
+		}
+
+		@Override
+		public Proc launch(ProcStarter starter) throws IOException {
+			spawns.incrementAndGet();
+			return super.launch(starter);
+		}
+	}
+
+	/**
+	 * Starts Hudson in a temporary home so that the descriptor and the
+	 * projects the plugin looks up exist.
+	 */
+	static final class Harness extends HudsonTestCase {
+		Harness() {
+			super("benchmark");
+		}
+
+		void start() throws Exception {
+			setUp();
+		}
+
+		void stop() throws Exception {
+			tearDown();
+		}
+
+		FreeStyleProject createProject() throws IOException {
+			return createFreeStyleProject();
+		}
+	}
+}
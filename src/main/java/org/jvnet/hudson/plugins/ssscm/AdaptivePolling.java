@@ -0,0 +1,177 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import hudson.model.Hudson;
+
+/**
+ * Stretches the interval between polling shell runs of jobs whose upstream
+ * rarely changes.
+ *
+ * <p>
+ * A poll only runs the polling shell once the time since its last run is at
+ * least a quarter of how long the upstream had been quiet at that run, up to
+ * a limit.  Right after a change every poll runs the polling shell, and
+ * the longer the upstream stays quiet, the more polls are skipped.  The
+ * histories are saved in a {@link PollingJournal} in the Hudson root
+ * directory and survive restarts.
+ */
+final class AdaptivePolling {
+
+	/**
+	 * The time since the last change divided by the interval between runs.
+	 */
+	private static final int RATIO = 4;
+
+	/**
+	 * The histories of the polled jobs, keyed by full name.
+	 */
+	private static final Map<String, History> HISTORIES = new HashMap<String, History>();
+
+	/**
+	 * The name of the journal in the Hudson root directory.
+	 */
+	private static final String JOURNAL = "ssscm-polling.journal";
+
+	/**
+	 * Saves the histories, null until they have been loaded.
+	 */
+	private static PollingJournal journal;
+
+	private AdaptivePolling() {
+	}
+
+	/**
+	 * Returns the polling history of a job.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 *
+	 * @return
+	 *      The polling history, empty if the job has not polled yet.
+	 */
+	static synchronized History of(String job) {
+		load();
+		History history = HISTORIES.get(job);
+		if(history == null) {
+			history = new History(journal, job, 0, 0);
+			HISTORIES.put(job, history);
+		}
+		return history;
+	}
+
+	/**
+	 * Forgets the polling history of a job, so that its next poll runs the
+	 * polling shell, for instance when it was notified of a commit.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 */
+	static synchronized void reset(String job) {
+		load();
+		HISTORIES.remove(job);
+		journal.remove(job);
+	}
+
+	/**
+	 * Loads the histories from the journal on first use.
+	 */
+	private static void load() {
+		if(journal != null)
+			return;
+		journal = new PollingJournal(new File(Hudson.getInstance().getRootDir(), JOURNAL));
+		for(Map.Entry<String, long[]> e : journal.replay().entrySet())
+			HISTORIES.put(e.getKey(), new History(journal, e.getKey(), e.getValue()[0], e.getValue()[1]));
+	}
+
+	/**
+	 * When the polling shell of a job last ran and last found changes.
+	 */
+	static final class History {
+
+		private final PollingJournal journal;
+		private final String job;
+
+		/**
+		 * When the polling shell last ran, 0 if it has not run yet.
+		 */
+		private long lastRun;
+
+		/**
+		 * When the polling shell last found changes, or first ran.
+		 */
+		private long lastChange;
+
+		private History(PollingJournal journal, String job, long lastRun, long lastChange) {
+			this.journal = journal;
+			this.job = job;
+			this.lastRun = lastRun;
+			this.lastChange = lastChange;
+		}
+
+		/**
+		 * Returns how long the next poll has to wait before running the
+		 * polling shell.
+		 *
+		 * @param limit
+		 *      The longest interval between runs in milliseconds.
+		 *
+		 * @return
+		 *      The time left in milliseconds, 0 or less if the polling shell
+		 *      is due.
+		 */
+		synchronized long getDelay(long limit) {
+			if(lastRun == 0)
+				return 0;
+			long interval = Math.min(limit, (lastRun - lastChange) / RATIO);
+			return lastRun + interval - System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the time since the polling shell last found changes.
+		 *
+		 * @return
+		 *      The time in milliseconds.
+		 */
+		synchronized long getQuietTime() {
+			return System.currentTimeMillis() - lastChange;
+		}
+
+		/**
+		 * Records a run of the polling shell.
+		 *
+		 * @param changed
+		 *      True if the polling shell found changes.
+		 */
+		synchronized void polled(boolean changed) {
+			lastRun = System.currentTimeMillis();
+			if(changed || lastChange == 0)
+				lastChange = lastRun;
+			journal.put(job, lastRun, lastChange);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.output.CountingOutputStream;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Proc;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+
+/**
+ * Answers the polls of many jobs from one run of the global batch polling
+ * shell.
+ *
+ * <p>
+ * Jobs declare a batch polling key, such as the branch they build.  The
+ * batch polling shell runs on the controller with the keys of all jobs on
+ * stdin, one per line, and prints a line with a key and its current revision
+ * for each key, separated by whitespace.  The revisions are reused for the
+ * configured interval, and each job compares the revision of its key with
+ * the one recorded for its last build.  Its runs are recorded in the
+ * {@link ShellMetrics} as polls of the job <tt>@batch</tt>.
+ */
+final class BatchPoll {
+
+	/**
+	 * The name of the scratch directory and the metrics of the batch polling
+	 * shell.  Job names cannot contain <tt>@</tt>.
+	 */
+	static final String NAME = "@batch";
+
+	/**
+	 * Serializes the runs of the batch polling shell, so that polls arriving
+	 * while it runs wait for its result.
+	 */
+	private static final Object LOCK = new Object();
+
+	/**
+	 * The keys passed to the last run.
+	 */
+	private static Set<String> keys;
+
+	/**
+	 * The revisions printed by the last run, keyed by key.
+	 */
+	private static Map<String, String> revisions;
+
+	/**
+	 * Why the last run failed, null if it did not.
+	 */
+	private static String failure;
+
+	/**
+	 * When the last run finished.
+	 */
+	private static long timestamp;
+
+	private BatchPoll() {
+	}
+
+	/**
+	 * Returns the current revision of a key, running the batch polling shell
+	 * unless its last run is recent enough and included the key.
+	 *
+	 * @param key
+	 *      The batch polling key of the job.
+	 *
+	 * @param descriptor
+	 *      The descriptor holding the batch polling shell and its settings.
+	 *
+	 * @param shell
+	 *      The shell running the batch polling shell if it does not name its
+	 *      interpreter.
+	 *
+	 * @param listener
+	 *      Receives stderr of the batch polling shell.
+	 *
+	 * @param force
+	 *      Set to true to run the batch polling shell even if its last run
+	 *      is recent enough.
+	 *
+	 * @return
+	 *      The revision of the key.
+	 *
+	 * @throws AbortException
+	 *      If the batch polling shell failed or printed no revision for the
+	 *      key.  A failure is reused like a result.
+	 */
+	static String getRevision(String key, ShellScriptSCM.DescriptorImpl descriptor, String shell, TaskListener listener,
+			boolean force) throws IOException, InterruptedException {
+		synchronized(LOCK) {
+			long age = System.currentTimeMillis() - timestamp;
+			if(force || keys == null || !keys.contains(key) || age >= descriptor.getBatchPollingInterval() * 1000L)
+				run(descriptor.getBatchPollingShell(), shell, descriptor.getBatchPollingTimeout(), descriptor.getMetrics(), listener);
+			else
+				listener.getLogger().println("Using the revisions printed by the batch polling shell " + age / 1000 + " seconds ago");
+
+			if(failure != null)
+				throw new AbortException(failure);
+			String revision = revisions.get(key);
+			if(revision == null)
+				throw new AbortException("Batch polling shell printed no revision for " + key);
+			return revision;
+		}
+	}
+
+	/**
+	 * Drops the result of the last run, for instance after the batch polling
+	 * shell has changed.
+	 */
+	static void reset() {
+		synchronized(LOCK) {
+			keys = null;
+			revisions = null;
+			failure = null;
+		}
+	}
+
+	/**
+	 * Runs the batch polling shell with the keys of all jobs.
+	 */
+	private static void run(String shellCmd, String shell, int timeout, ShellMetrics metrics, TaskListener listener)
+			throws IOException, InterruptedException {
+		Set<String> keys = collectKeys();
+		StringBuilder stdin = new StringBuilder();
+		for(String key : keys)
+			stdin.append(key).append('\n');
+		listener.getLogger().println("Running the batch polling shell for " + keys.size() + " keys");
+
+		Hudson hudson = Hudson.getInstance();
+		FilePath dir = PollingNodes.scratchDir(hudson, NAME);
+		FilePath script;
+		try {
+			script = dir.createTextTempFile("SSSCM", ".sh", shellCmd, false);
+		} catch (IOException e) {
+			metrics.scriptFailed(NAME, dir, ShellMetrics.POLLING);
+			throw e;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CountingOutputStream err = new CountingOutputStream(listener.getLogger());
+		long start = System.currentTimeMillis();
+		int rc;
+		try {
+			Proc proc = hudson.createLauncher(listener).launch()
+					.cmds(LaunchTemplate.of(shellCmd, shell).commandLine(script))
+					.stdin(new ByteArrayInputStream(stdin.toString().getBytes()))
+					.stdout(out).stderr(err).pwd(dir).start();
+			rc = ShellScriptSCM.join(proc, timeout, listener);
+		} finally {
+			script.delete();
+		}
+		metrics.executed(NAME, dir, ShellMetrics.POLLING, System.currentTimeMillis() - start, rc, err.getByteCount(), true);
+
+		Map<String, String> revisions = new HashMap<String, String>();
+		String failure = null;
+		if(rc == ShellScriptSCM.TIMED_OUT) {
+			failure = "Batch polling shell timed out after " + timeout + " seconds";
+		} else if(rc != 0) {
+			failure = "Batch polling shell failed with exit code " + rc;
+		} else {
+			BufferedReader r = new BufferedReader(new StringReader(out.toString()));
+			String line;
+			while((line = r.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+", 2);
+				if(fields.length == 2 && keys.contains(fields[0]))
+					revisions.put(fields[0], fields[1]);
+			}
+		}
+
+		BatchPoll.keys = keys;
+		BatchPoll.revisions = revisions;
+		BatchPoll.failure = failure;
+		BatchPoll.timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the batch polling keys of all jobs, including those the user
+	 * whose poll triggered the run may not read.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<String> collectKeys() {
+		Set<String> keys = new TreeSet<String>();
+		SecurityContext context = SecurityContextHolder.getContext();
+		Authentication auth = context.getAuthentication();
+		context.setAuthentication(ACL.SYSTEM);
+		try {
+			for(AbstractProject<?,?> project : (List<AbstractProject<?,?>>)(List)Hudson.getInstance().getAllItems(AbstractProject.class)) {
+				SCM scm = project.getScm();
+				if(scm instanceof ShellScriptSCM && ((ShellScriptSCM)scm).getBatchPollingKey() != null)
+					keys.add(((ShellScriptSCM)scm).getBatchPollingKey());
+			}
+		} finally {
+			context.setAuthentication(auth);
+		}
+		return keys;
+	}
+}
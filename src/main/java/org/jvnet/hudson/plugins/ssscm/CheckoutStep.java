@@ -0,0 +1,182 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * A named checkout shell run in its own directory of the workspace,
+ * concurrently with the other checkout steps of the job.
+ */
+public class CheckoutStep extends AbstractDescribableImpl<CheckoutStep> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The name of the step, prefixed to its output.
+	 */
+	private final String name;
+
+	/**
+	 * The directory relative to the workspace the step runs in, null to
+	 * use the name.
+	 */
+	private final String directory;
+
+	/**
+	 * The shell command of the step.
+	 */
+	private final String shell;
+
+	/**
+	 * Creates the checkout step.
+	 * 
+	 * @param name 
+	 *      The name of the step.
+	 *      
+	 * @param directory 
+	 *      The directory relative to the workspace the step runs in, empty
+	 *      to use the name.
+	 *      
+	 * @param shell 
+	 *      The shell command of the step.
+	 */
+	@DataBoundConstructor
+	public CheckoutStep(String name, String directory, String shell) {
+		this.name = Util.fixEmptyAndTrim(name);
+		this.directory = Util.fixEmptyAndTrim(directory);
+		this.shell = shell;
+	}
+
+	/**
+	 * Returns the name of the step.
+	 * 
+	 * @return 
+	 *      The name, "checkout" if none was given.
+	 */
+	public String getName() {
+		return name != null ? name : "checkout";
+	}
+
+	/**
+	 * Returns the directory the step runs in.
+	 * 
+	 * @return 
+	 *      The directory relative to the workspace.
+	 */
+	public String getDirectory() {
+		return directory != null ? directory : getName();
+	}
+
+	/**
+	 * Returns the shell command of the step.
+	 * 
+	 * @return 
+	 *      The shell command.
+	 */
+	public String getShell() {
+		return shell;
+	}
+
+	/**
+	 * Checks that the steps run in distinct directories of the workspace
+	 * and have distinct names, so that their output can be told apart.
+	 * 
+	 * @param steps 
+	 *      The checkout steps of a job.
+	 *      
+	 * @throws AbortException 
+	 *      If a step would run outside the workspace, or two steps share a
+	 *      name or a directory.
+	 */
+	static void validate(List<CheckoutStep> steps) throws AbortException {
+		Set<String> names = new HashSet<String>();
+		Set<String> directories = new HashSet<String>();
+		for(CheckoutStep step : steps) {
+			String error = checkDirectory(step.getDirectory());
+			if(error != null)
+				throw new AbortException("Checkout step " + step.getName() + ": " + error);
+			if(!names.add(step.getName()))
+				throw new AbortException("More than one checkout step is named " + step.getName());
+			if(!directories.add(normalize(step.getDirectory())))
+				throw new AbortException("More than one checkout step runs in " + step.getDirectory());
+		}
+	}
+
+	/**
+	 * Checks that a directory lies within the workspace.
+	 * 
+	 * @return 
+	 *      Why the directory is not allowed, null if it is.
+	 */
+	static String checkDirectory(String directory) {
+		if(directory.startsWith("/") || directory.startsWith("\\") || directory.matches("[A-Za-z]:.*"))
+			return "The directory must be relative to the workspace";
+		for(String segment : directory.split("[/\\\\]")) {
+			if(segment.equals(".."))
+				return "The directory must not leave the workspace";
+		}
+		return null;
+	}
+
+	/**
+	 * Drops empty and <tt>.</tt> segments from a relative directory.
+	 */
+	private static String normalize(String directory) {
+		StringBuilder b = new StringBuilder();
+		for(String segment : directory.split("[/\\\\]")) {
+			if(segment.length() == 0 || segment.equals("."))
+				continue;
+			if(b.length() > 0)
+				b.append('/');
+			b.append(segment);
+		}
+		return b.toString();
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<CheckoutStep> {
+		@Override
+		public String getDisplayName() {
+			return "Checkout step";
+		}
+
+		public FormValidation doCheckDirectory(@QueryParameter String value) {
+			value = Util.fixEmptyAndTrim(value);
+			String error = value != null ? checkDirectory(value) : null;
+			return error != null ? FormValidation.error(error) : FormValidation.ok();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import hudson.FilePath;
+import hudson.Util;
+
+/**
+ * The command line and digest of a shell script, worked out once when the
+ * configuration is bound instead of on every execution.
+ *
+ * <p>
+ * The interpreter comes from the <tt>#!</tt> line of the script, if it has
+ * one, and is the given default shell otherwise.  Templates are immutable and
+ * may be shared between threads.
+ */
+final class LaunchTemplate {
+
+	/**
+	 * The longest script passed on the command line.  Operating systems
+	 * limit the length of a single argument, to 128KiB on Linux.
+	 */
+	private static final int MAX_INLINE_LENGTH = 32 * 1024;
+
+	/**
+	 * The script the template was made from.
+	 */
+	private final String script;
+
+	/**
+	 * The interpreter and its arguments, without the script path.
+	 */
+	private final String[] args;
+
+	/**
+	 * True if the script names its own interpreter.
+	 */
+	private final boolean interpreter;
+
+	/**
+	 * The digest of the script text.
+	 */
+	private final String digest;
+
+	/**
+	 * The command line passing the script to the shell with <tt>-c</tt>,
+	 * null if the script has to be run from a file.
+	 */
+	private final String[] inline;
+
+	/**
+	 * Masks the script text of the inline command line, so that the
+	 * launcher does not print the script, and any secrets in it, to the log.
+	 */
+	private final boolean[] inlineMasks;
+
+	private LaunchTemplate(String script, String[] args, boolean interpreter) {
+		this.script = script;
+		this.args = args;
+		this.interpreter = interpreter;
+		this.digest = Util.getDigestOf(script);
+		if(interpreter || script.length() > MAX_INLINE_LENGTH) {
+			this.inline = null;
+			this.inlineMasks = null;
+		} else {
+			this.inline = new String[args.length + 2];
+			System.arraycopy(args, 0, inline, 0, args.length);
+			inline[args.length] = "-c";
+			inline[args.length + 1] = script;
+			this.inlineMasks = new boolean[inline.length];
+			inlineMasks[args.length + 1] = true;
+		}
+	}
+
+	/**
+	 * Makes the template of a script.
+	 *
+	 * @param script
+	 *      The script text, null for an empty script.
+	 *
+	 * @param shell
+	 *      The shell running scripts which do not name their interpreter.
+	 *
+	 * @return
+	 *      The template.
+	 */
+	static LaunchTemplate of(String script, String shell) {
+		if(script == null)
+			script = "";
+		if(script.startsWith("#!")) {
+			// interpreter override
+			int end = script.indexOf('\n');
+			if(end<0)   end=script.length();
+			String[] args = Util.tokenize(script.substring(0,end).trim());
+			args[0] = args[0].substring(2);   // trim off "#!"
+			return new LaunchTemplate(script, args, true);
+		}
+		return new LaunchTemplate(script, new String[] { shell, "-xe" }, false);
+	}
+
+	/**
+	 * Returns true if this template was made from the given script.
+	 */
+	boolean isFor(String script) {
+		return this.script.equals(script);
+	}
+
+	/**
+	 * Returns true if the script names its own interpreter with a
+	 * <tt>#!</tt> line.
+	 */
+	boolean hasInterpreter() {
+		return interpreter;
+	}
+
+	/**
+	 * Returns the digest of the script text, as {@link Util#getDigestOf}
+	 * computes it.
+	 */
+	String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Returns the command line running the script.
+	 *
+	 * @param scriptFile
+	 *      The file on the node holding the script text.
+	 *
+	 * @return
+	 *      The interpreter, its arguments and the path of the script file.
+	 */
+	String[] commandLine(FilePath scriptFile) {
+		String[] cmd = new String[args.length + 1];
+		System.arraycopy(args, 0, cmd, 0, args.length);
+		cmd[args.length] = scriptFile.getRemote();
+		return cmd;
+	}
+
+	/**
+	 * Returns the command line passing the script text to the shell with
+	 * <tt>-c</tt>, so that no script file is needed.  The script is not
+	 * piped to the shell's stdin, which the commands of the script would
+	 * read from.
+	 *
+	 * @return
+	 *      The shell, its arguments and the script text, or null if the
+	 *      script names its own interpreter, which may need a file, or is
+	 *      too long for the command line.
+	 */
+	String[] inlineCommandLine() {
+		return inline;
+	}
+
+	/**
+	 * Returns which arguments of the inline command line the launcher must
+	 * not print, that is the script text.
+	 *
+	 * @return
+	 *      The masks, null if there is no inline command line.
+	 */
+	boolean[] inlineMasks() {
+		return inlineMasks;
+	}
+}
@@ -0,0 +1,321 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Node-local cache directories shared by the checkouts of all jobs
+ * declaring the same cache key, for instance as a mirror of the upstream
+ * repository.
+ *
+ * <p>
+ * The caches live in <tt>ssscm-cache</tt> below the root of the node, named
+ * after the digest of their key.  Next to each cache directory there is a
+ * lock file, whose modification time records when the cache was last used,
+ * and, when the size of the caches is limited, a file holding the size of
+ * the cache after its last use.  While a checkout uses a cache, the node
+ * holds a shared lock on its lock file.  When the caches together grow past
+ * the configured size, the least recently used ones which are not locked
+ * are moved aside and deleted.  Their lock files are only emptied, never
+ * deleted, as other checkouts may be waiting for a lock on them already.
+ *
+ * <p>
+ * Checkouts using the same cache at the same time must update it in a way
+ * which is safe against each other, for instance with <tt>git fetch</tt>
+ * into a mirror.
+ */
+final class MirrorCache {
+
+	/**
+	 * The environment variable naming the cache directory.
+	 */
+	static final String VARIABLE = "SSSCM_CACHE_DIR";
+
+	/**
+	 * The directory below the node root holding the caches.
+	 */
+	private static final String DIR = "ssscm-cache";
+
+	/**
+	 * The caches used by this JVM, keyed by their path.  Only used on the
+	 * node.
+	 */
+	private static final Map<String, Use> USES = new HashMap<String, Use>();
+
+	private MirrorCache() {
+	}
+
+	/**
+	 * Locks the cache of a key for use, creating it if needed.
+	 *
+	 * @param root
+	 *      The root of the node.
+	 *
+	 * @param key
+	 *      The cache key.
+	 *
+	 * @return
+	 *      The cache directory, which must be released with
+	 *      {@link #release} once the checkout is done.
+	 */
+	static FilePath acquire(FilePath root, String key) throws IOException, InterruptedException {
+		FilePath dir = root.child(DIR).child(Util.getDigestOf(key));
+		dir.act(new Acquire(key));
+		return dir;
+	}
+
+	/**
+	 * Releases a cache and evicts the least recently used caches if the
+	 * caches have grown too large.
+	 *
+	 * @param dir
+	 *      The cache directory returned by {@link #acquire}.
+	 *
+	 * @param limit
+	 *      The size in bytes the caches of the node may take together, 0
+	 *      for no limit.
+	 *
+	 * @return
+	 *      The keys of the evicted caches.
+	 */
+	static List<String> release(FilePath dir, long limit) throws IOException, InterruptedException {
+		return dir.act(new Release(limit));
+	}
+
+	/**
+	 * The uses of one cache by this JVM.  A JVM can hold one lock per file
+	 * only, so the shared lock is taken by the first use and released by
+	 * the last one.
+	 */
+	private static final class Use {
+		final FileChannel channel;
+		final FileLock lock;
+		int count;
+
+		Use(FileChannel channel, FileLock lock) {
+			this.channel = channel;
+			this.lock = lock;
+		}
+	}
+
+	private static File lockFile(File dir) {
+		return new File(dir.getPath() + ".lock");
+	}
+
+	private static File sizeFile(File dir) {
+		return new File(dir.getPath() + ".size");
+	}
+
+	private static final class Acquire implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+
+		Acquire(String key) {
+			this.key = key;
+		}
+
+		public Void invoke(File dir, VirtualChannel channel) throws IOException {
+			File lockFile = lockFile(dir);
+			synchronized(USES) {
+				Use use = USES.get(dir.getAbsolutePath());
+				if(use == null) {
+					dir.getParentFile().mkdirs();
+					RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+					try {
+						// waits while another JVM evicts the cache
+						use = new Use(file.getChannel(), file.getChannel().lock(0, Long.MAX_VALUE, true));
+						// new or evicted, which empties the lock file
+						if(file.length() == 0)
+							file.write(key.getBytes("UTF-8"));
+					} catch (IOException e) {
+						file.close();
+						throw e;
+					}
+					USES.put(dir.getAbsolutePath(), use);
+				}
+				use.count++;
+			}
+			if(!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Failed to create " + dir);
+			lockFile.setLastModified(System.currentTimeMillis());
+			return null;
+		}
+	}
+
+	private static final class Release implements FileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+
+		private final long limit;
+
+		Release(long limit) {
+			this.limit = limit;
+		}
+
+		public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+			synchronized(USES) {
+				Use use = USES.get(dir.getAbsolutePath());
+				if(use != null && --use.count == 0) {
+					USES.remove(dir.getAbsolutePath());
+					use.lock.release();
+					use.channel.close();
+				}
+			}
+			if(limit <= 0)
+				return new ArrayList<String>();
+			// only measured when needed, as this walks the whole cache
+			writeSize(dir, sizeOf(dir));
+			return evict(dir.getParentFile(), limit);
+		}
+
+		/**
+		 * Deletes the least recently used caches which are not locked until
+		 * the caches fit into the limit.  A cache is renamed while locked and
+		 * deleted afterwards, so that checkouts acquiring other caches do not
+		 * wait for the deletion.
+		 */
+		private List<String> evict(File root, long limit) throws IOException {
+			File[] locks = root.listFiles(new FileFilter() {
+				public boolean accept(File f) {
+					return f.getName().endsWith(".lock");
+				}
+			});
+			List<String> evicted = new ArrayList<String>();
+			if(locks == null)
+				return evicted;
+
+			long total = 0;
+			for(File lock : locks)
+				total += readSize(cacheOf(lock));
+			if(total <= limit)
+				return evicted;
+
+			Arrays.sort(locks, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long d = a.lastModified() - b.lastModified();
+					return d < 0 ? -1 : d > 0 ? 1 : 0;
+				}
+			});
+			for(int i = 0; i < locks.length && total > limit; i++) {
+				File cache = cacheOf(locks[i]);
+				File doomed = new File(cache.getPath() + "." + System.nanoTime() + ".evicted");
+				synchronized(USES) {
+					if(USES.containsKey(cache.getAbsolutePath()))
+						continue;
+					RandomAccessFile file = new RandomAccessFile(locks[i], "rw");
+					try {
+						// fails while another JVM uses the cache
+						FileLock lock = file.getChannel().tryLock();
+						if(lock == null)
+							continue;
+						try {
+							// evicted already
+							if(file.length() == 0)
+								continue;
+							if(cache.exists() && !cache.renameTo(doomed))
+								continue;
+							byte[] key = new byte[(int)file.length()];
+							file.readFully(key);
+							total -= readSize(cache);
+							sizeFile(cache).delete();
+							// deleting the lock file would leave checkouts
+							// waiting for it with a lock on a deleted file
+							file.setLength(0);
+							evicted.add(new String(key, "UTF-8"));
+						} finally {
+							lock.release();
+						}
+					} finally {
+						file.close();
+					}
+				}
+				if(doomed.exists())
+					Util.deleteRecursive(doomed);
+			}
+			return evicted;
+		}
+	}
+
+	private static File cacheOf(File lock) {
+		String path = lock.getPath();
+		return new File(path.substring(0, path.length() - ".lock".length()));
+	}
+
+	private static long sizeOf(File f) throws IOException {
+		if(!f.isDirectory())
+			return f.length();
+		long size = 0;
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File child : children)
+				size += Util.isSymlink(child) ? 0 : sizeOf(child);
+		}
+		return size;
+	}
+
+	private static long readSize(File cache) throws IOException {
+		File f = sizeFile(cache);
+		if(!f.isFile())
+			// never released yet
+			return 0;
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			String line = r.readLine();
+			return line != null ? Long.parseLong(line.trim()) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void writeSize(File cache, long size) throws IOException {
+		Writer w = new FileWriter(sizeFile(cache));
+		try {
+			w.write(Long.toString(size));
+		} finally {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Finds the node a file lives on.
+ */
+final class Nodes {
+
+	private Nodes() {
+	}
+
+	/**
+	 * Returns the computer whose channel the given file is reached through.
+	 *
+	 * @param path
+	 *      Any file.
+	 *
+	 * @return
+	 *      The computer of the node the file lives on, null if the node is
+	 *      no longer connected.
+	 */
+	static Computer computerOf(FilePath path) {
+		VirtualChannel channel = path.getChannel();
+		for(Computer c : Hudson.getInstance().getComputers()) {
+			if(c.getChannel() == channel)
+				return c;
+		}
+		return null;
+	}
+}
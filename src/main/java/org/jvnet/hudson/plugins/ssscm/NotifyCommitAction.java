@@ -0,0 +1,65 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.UnprotectedRootAction;
+
+/**
+ * Receives commit notifications for jobs using {@link ShellScriptSCM} at
+ * <tt>/ssscm/notifyCommit</tt>.
+ *
+ * <p>
+ * The URL is reachable without logging in, as notifications are authorized
+ * by the token configured globally.  For example:
+ *
+ * <pre>
+ * curl -H "X-SSSCM-Token: $TOKEN" "$HUDSON_URL/ssscm/notifyCommit?key=myrepo&amp;revision=4711"
+ * </pre>
+ *
+ * @see ShellScriptSCM.DescriptorImpl#doNotifyCommit
+ */
+@Extension
+public class NotifyCommitAction implements UnprotectedRootAction {
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return "ssscm";
+	}
+
+	public void doNotifyCommit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Hudson.getInstance().getDescriptorByType(ShellScriptSCM.DescriptorImpl.class).doNotifyCommit(req, rsp);
+	}
+}
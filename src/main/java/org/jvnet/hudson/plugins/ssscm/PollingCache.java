@@ -0,0 +1,305 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * A per-node cache of polling shell results.
+ *
+ * <p>
+ * Jobs sharing the same polling shell on the same node reuse the result of
+ * the last run of that shell until it is older than the configured time to
+ * live, instead of running the shell again.  Polls in a workspace only reuse
+ * the results of runs in the same workspace.  Polls of the same job and
+ * polling shell arriving while one is running wait for its result, on
+ * whichever node that one runs.  The next poll of a job notified of a commit
+ * runs the polling shell regardless.
+ */
+final class PollingCache {
+
+	/**
+	 * One cache per node, keyed by the channel to that node.
+	 */
+	private static final Map<VirtualChannel, PollingCache> CACHES = new WeakHashMap<VirtualChannel, PollingCache>();
+
+	/**
+	 * The polls running now on any node, keyed by job and {@link #key}.
+	 */
+	private static final Map<String, Flight> FLIGHTS = new HashMap<String, Flight>();
+
+	/**
+	 * The jobs whose next poll runs the polling shell, by full name.
+	 */
+	private static final Set<String> FORCED = new HashSet<String>();
+
+	/**
+	 * The cached results, keyed by {@link #key}.
+	 */
+	private final Map<String, Result> results = new HashMap<String, Result>();
+
+	private PollingCache() {
+	}
+
+	/**
+	 * Returns the cache for the node the given workspace lives on.
+	 *
+	 * @param workspace
+	 *      Any directory on the node.
+	 *
+	 * @return
+	 *      The polling cache of that node.
+	 */
+	static synchronized PollingCache of(FilePath workspace) {
+		VirtualChannel channel = workspace.getChannel();
+		PollingCache cache = CACHES.get(channel);
+		if(cache == null) {
+			cache = new PollingCache();
+			CACHES.put(channel, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Makes the next poll of a job bypass the cached results and the running
+	 * polls, for instance when it was notified of a commit.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 */
+	static void force(String job) {
+		synchronized(FORCED) {
+			FORCED.add(job);
+		}
+	}
+
+	/**
+	 * Returns whether a poll of a job must bypass the cached results, and
+	 * clears the flag.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 *
+	 * @return
+	 *      True if {@link #force} was called since the last poll of the job.
+	 */
+	static boolean takeForced(String job) {
+		synchronized(FORCED) {
+			return FORCED.remove(job);
+		}
+	}
+
+	/**
+	 * Returns the cache key of a polling shell run.
+	 *
+	 * @param shellCmd
+	 *      The polling shell.
+	 *
+	 * @param env
+	 *      The environment of the polling shell.  Only the variables the
+	 *      polling shell refers to are part of the key.
+	 *
+	 * @param captureOutput
+	 *      True if the output of the shell is part of the result.
+	 *
+	 * @param directory
+	 *      The directory the polling shell runs in, null if its result does
+	 *      not depend on the directory.
+	 *
+	 * @return
+	 *      The cache key.
+	 */
+	static String key(String shellCmd, Map<String,String> env, boolean captureOutput, String directory) {
+		return (captureOutput ? "output:" : "rc:") + Util.getDigestOf(shellCmd + '\0' + ScriptEnvironment.referencedBy(shellCmd, env)
+				+ (directory != null ? '\0' + directory : ""));
+	}
+
+	/**
+	 * Returns a cached result which is not older than the given time to live.
+	 *
+	 * @param key
+	 *      The cache key.
+	 *
+	 * @param ttl
+	 *      The time to live in milliseconds.
+	 *
+	 * @return
+	 *      The cached result, or null if there is none or it has expired.
+	 */
+	synchronized Result get(String key, long ttl) {
+		Result result = results.get(key);
+		if(result == null || result.getAge() >= ttl)
+			return null;
+		return result;
+	}
+
+	/**
+	 * Caches a result, dropping the results which have expired meanwhile.
+	 *
+	 * @param key
+	 *      The cache key.
+	 *
+	 * @param result
+	 *      The result of the polling shell.
+	 *
+	 * @param ttl
+	 *      The time to live in milliseconds.
+	 */
+	synchronized void put(String key, Result result, long ttl) {
+		for(Iterator<Result> it = results.values().iterator(); it.hasNext();) {
+			if(it.next().getAge() >= ttl)
+				it.remove();
+		}
+		results.put(key, result);
+	}
+
+	/**
+	 * Joins the poll running for the given key, or starts one if none is
+	 * running.  The caller pilots the returned flight if
+	 * {@link Flight#isPilot} says so, and must then land it once done.
+	 * Otherwise it waits for the result with {@link Flight#await}.
+	 *
+	 * @param key
+	 *      The job and the cache key of the polling shell.
+	 *
+	 * @return
+	 *      The flight of the poll.
+	 */
+	static Flight board(String key) {
+		synchronized(FLIGHTS) {
+			Flight flight = FLIGHTS.get(key);
+			if(flight == null) {
+				flight = new Flight(key);
+				FLIGHTS.put(key, flight);
+			}
+			return flight;
+		}
+	}
+
+	/**
+	 * A running poll other polls of the same job and polling shell wait for.
+	 */
+	static final class Flight {
+		private final String key;
+
+		/**
+		 * The thread running the polling shell.
+		 */
+		private final Thread pilot = Thread.currentThread();
+
+		private boolean landed;
+		private Result result;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+
+		boolean isPilot() {
+			return pilot == Thread.currentThread();
+		}
+
+		/**
+		 * Hands the result to the waiting polls.
+		 *
+		 * @param result
+		 *      The result of the polling shell, null if the poll failed.
+		 */
+		void land(Result result) {
+			synchronized(FLIGHTS) {
+				FLIGHTS.remove(key);
+			}
+			synchronized(this) {
+				this.result = result;
+				landed = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for the result of the poll.
+		 *
+		 * @return
+		 *      The result of the polling shell.
+		 *
+		 * @throws AbortException
+		 *      If the poll failed.
+		 */
+		synchronized Result await() throws InterruptedException, AbortException {
+			while(!landed)
+				wait();
+			if(result == null)
+				throw new AbortException("The poll this poll waited for failed");
+			return result;
+		}
+	}
+
+	/**
+	 * The result of one polling shell run.
+	 */
+	static final class Result {
+
+		/**
+		 * The exit code of the polling shell.
+		 */
+		final int exitCode;
+
+		/**
+		 * The captured stdout of the polling shell, null if it was not captured.
+		 */
+		final String output;
+
+		/**
+		 * The report the polling shell wrote, null if it wrote none.
+		 */
+		final String report;
+
+		/**
+		 * When the polling shell finished.
+		 */
+		final long timestamp;
+
+		Result(int exitCode, String output, String report) {
+			this.exitCode = exitCode;
+			this.output = output;
+			this.report = report;
+			this.timestamp = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the age of the result in milliseconds.
+		 */
+		long getAge() {
+			return System.currentTimeMillis() - timestamp;
+		}
+	}
+}
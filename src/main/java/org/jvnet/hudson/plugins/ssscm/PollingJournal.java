@@ -0,0 +1,283 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * An append-only file holding the polling state of jobs.
+ *
+ * <p>
+ * Every change of the state of a job appends one small binary record, so
+ * that updates cost a single sequential write instead of saving a job
+ * configuration.  The state is rebuilt at startup by replaying the records.
+ * Once the file holds many more records than jobs, it is rewritten with one
+ * record per job.  A record cut short by a crash is dropped on replay.
+ */
+final class PollingJournal {
+
+	private static final Logger LOGGER = Logger.getLogger(PollingJournal.class.getName());
+
+	/**
+	 * The first bytes of a journal, "SSPJ".
+	 */
+	private static final int MAGIC = 0x5353504a;
+
+	/**
+	 * The record setting the state of a job.
+	 */
+	private static final byte PUT = 1;
+
+	/**
+	 * The record dropping the state of a job.
+	 */
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The number of records the journal may hold beyond twice the number of
+	 * jobs before it is rewritten.
+	 */
+	private static final int SLACK = 1000;
+
+	private final File file;
+
+	/**
+	 * The state of the jobs, keyed by full name.
+	 */
+	private final Map<String, long[]> state = new HashMap<String, long[]>();
+
+	/**
+	 * Appends to the journal, null until the journal has been replayed or
+	 * after writing failed.
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * The number of records in the journal.
+	 */
+	private int records;
+
+	/**
+	 * Creates the journal.
+	 *
+	 * @param file
+	 *      The journal file, which need not exist.
+	 */
+	PollingJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the state of the jobs from the journal and opens it for
+	 * appending.
+	 *
+	 * @return
+	 *      The state of each job, keyed by full name.  The state is a copy.
+	 */
+	synchronized Map<String, long[]> replay() {
+		state.clear();
+		records = 0;
+		long end = 0;
+		if(file.exists()) {
+			try {
+				CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+				DataInputStream in = new DataInputStream(counter);
+				try {
+					if(in.readInt() != MAGIC)
+						throw new IOException("Not a polling journal: " + file);
+					end = 4;
+					while(true) {
+						byte type = in.readByte();
+						String job = in.readUTF();
+						if(type == PUT)
+							state.put(job, new long[] { in.readLong(), in.readLong() });
+						else if(type == REMOVE)
+							state.remove(job);
+						else
+							throw new IOException("Corrupt polling journal: " + file);
+						records++;
+						end = counter.getByteCount();
+					}
+				} finally {
+					in.close();
+				}
+			} catch (EOFException e) {
+				// the end of the journal, or a record cut short
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Dropping the polling state after the first " + records + " records", e);
+			}
+		}
+
+		try {
+			if(end == 0 || records > 2 * state.size() + SLACK) {
+				compact();
+			} else {
+				truncate(end);
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to open the polling journal " + file, e);
+		}
+
+		Map<String, long[]> copy = new HashMap<String, long[]>();
+		for(Map.Entry<String, long[]> e : state.entrySet())
+			copy.put(e.getKey(), e.getValue().clone());
+		return copy;
+	}
+
+	/**
+	 * Records the state of a job.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 *
+	 * @param lastRun
+	 *      When the polling shell of the job last ran.
+	 *
+	 * @param lastChange
+	 *      When the polling shell of the job last found changes.
+	 */
+	synchronized void put(String job, long lastRun, long lastChange) {
+		state.put(job, new long[] { lastRun, lastChange });
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(buf);
+		try {
+			record.writeByte(PUT);
+			record.writeUTF(job);
+			record.writeLong(lastRun);
+			record.writeLong(lastChange);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		append(buf);
+	}
+
+	/**
+	 * Drops the state of a job.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 */
+	synchronized void remove(String job) {
+		if(state.remove(job) == null)
+			return;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(buf);
+		try {
+			record.writeByte(REMOVE);
+			record.writeUTF(job);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		append(buf);
+	}
+
+	/**
+	 * Appends a record in a single write, rewriting the journal once it
+	 * holds too many records.
+	 */
+	private void append(ByteArrayOutputStream record) {
+		if(out == null)
+			return;
+		try {
+			record.writeTo(out);
+			out.flush();
+			records++;
+			if(records > 2 * state.size() + SLACK)
+				compact();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to write the polling journal " + file + ", the polling state is no longer saved", e);
+			close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with one record per job.  The new journal is
+	 * written next to the old one and renamed into place.
+	 */
+	private void compact() throws IOException {
+		close();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream w = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			w.writeInt(MAGIC);
+			for(Map.Entry<String, long[]> e : state.entrySet()) {
+				w.writeByte(PUT);
+				w.writeUTF(e.getKey());
+				w.writeLong(e.getValue()[0]);
+				w.writeLong(e.getValue()[1]);
+			}
+		} finally {
+			w.close();
+		}
+		if(!tmp.renameTo(file)) {
+			// renaming over an existing file fails on some platforms
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Failed to replace " + file);
+		}
+		records = state.size();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	/**
+	 * Cuts off a record cut short at the end of the journal.
+	 */
+	private void truncate(long end) throws IOException {
+		if(file.length() == end)
+			return;
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(end);
+		} finally {
+			f.close();
+		}
+	}
+
+	private void close() {
+		if(out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to close the polling journal " + file, e);
+		}
+		out = null;
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Captures the output of a poll with bounded memory.
+ *
+ * <p>
+ * The first quarter of the limit is kept as the head of the output and the
+ * rest as a ring buffer holding its tail.  The complete output is kept as
+ * well until it grows past {@link #FULL_FACTOR} times the limit, so that it
+ * can be logged in full when the poll fails or finds changes.  Otherwise
+ * only the head, the number of bytes skipped and the tail are logged.
+ */
+final class PollingLog extends OutputStream {
+
+	/**
+	 * How many times the limit the complete output may grow to before only
+	 * its head and tail are kept.
+	 */
+	static final int FULL_FACTOR = 16;
+
+	private final byte[] head;
+	private int headLength;
+
+	private final byte[] tail;
+	private int tailPosition;
+
+	/**
+	 * The number of bytes written, including the head.
+	 */
+	private long total;
+
+	/**
+	 * The complete output, null once it grew past its limit.
+	 */
+	private ByteArrayOutputStream full = new ByteArrayOutputStream();
+	private final long fullLimit;
+
+	/**
+	 * Creates the capture.
+	 *
+	 * @param limit
+	 *      The number of bytes of head and tail kept together.
+	 */
+	PollingLog(int limit) {
+		head = new byte[limit / 4];
+		tail = new byte[limit - head.length];
+		fullLimit = (long)limit * FULL_FACTOR;
+	}
+
+	@Override
+	public void write(int b) {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		total += len;
+		if(full != null) {
+			if(full.size() + len <= fullLimit)
+				full.write(b, off, len);
+			else
+				full = null;
+		}
+
+		int n = Math.min(len, head.length - headLength);
+		System.arraycopy(b, off, head, headLength, n);
+		headLength += n;
+		off += n;
+		len -= n;
+
+		if(len > tail.length) {
+			// only the last bytes fit
+			off += len - tail.length;
+			len = tail.length;
+		}
+		while(len > 0) {
+			n = Math.min(len, tail.length - tailPosition);
+			System.arraycopy(b, off, tail, tailPosition, n);
+			tailPosition = (tailPosition + n) % tail.length;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes the captured output.
+	 *
+	 * @param out
+	 *      Where to write the output to.
+	 *
+	 * @param complete
+	 *      Set to true to write the complete output if it was kept.
+	 */
+	synchronized void writeTo(OutputStream out, boolean complete) throws IOException {
+		if(complete && full != null) {
+			full.writeTo(out);
+			return;
+		}
+
+		out.write(head, 0, headLength);
+		long tailLength = Math.min(tail.length, total - headLength);
+		long skipped = total - headLength - tailLength;
+		if(skipped > 0)
+			out.write(("\n[... " + skipped + " bytes of polling output skipped ...]\n").getBytes());
+		if(tailLength == tail.length) {
+			out.write(tail, tailPosition, tail.length - tailPosition);
+			out.write(tail, 0, tailPosition);
+		} else {
+			out.write(tail, 0, (int)tailLength);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+
+/**
+ * Chooses where polling runs when it does not need the job's workspace.
+ *
+ * <p>
+ * Of the online nodes matching the polling label, the one expected to finish
+ * a poll first is chosen, from the number of polls running on each node and
+ * the average duration of its recent polls.
+ */
+final class PollingNodes {
+
+	/**
+	 * The directory below the node root holding the polling scratch directories.
+	 */
+	private static final String SCRATCH_DIR = "ssscm-polling";
+
+	/**
+	 * The weight of the latest poll in the average poll duration of a node.
+	 */
+	private static final double DURATION_WEIGHT = 0.3;
+
+	/**
+	 * The polling load of the nodes, keyed by node name.
+	 */
+	private static final Map<String, Load> LOADS = new HashMap<String, Load>();
+
+	private PollingNodes() {
+	}
+
+	/**
+	 * Returns the least loaded online node to poll on.  The poll counts
+	 * towards the load of the node from now on, so that polls selecting
+	 * nodes at the same time spread over them, until the returned lease is
+	 * released.  Only the time between {@link Lease#start} and the release
+	 * counts towards the average duration of the node.
+	 *
+	 * @param label
+	 *      A label expression selecting the polling nodes, or null/empty to
+	 *      poll on the controller.
+	 *
+	 * @return
+	 *      The lease of the node to poll on.
+	 *
+	 * @throws AbortException
+	 *      If no node matching the label is online.
+	 */
+	static Lease select(String label) throws AbortException {
+		Hudson hudson = Hudson.getInstance();
+		label = Util.fixEmptyAndTrim(label);
+		if(label == null)
+			return lease(hudson);
+
+		Label l = hudson.getLabel(label);
+		if(l != null) {
+			synchronized(LOADS) {
+				double average = averageDuration();
+				Node best = null;
+				double bestCost = 0;
+				Load bestLoad = null;
+				for(Node node : l.getNodes()) {
+					if(!isOnline(node))
+						continue;
+					Load load = LOADS.get(node.getNodeName());
+					if(load == null)
+						load = new Load();
+					// nodes which have not polled yet are assumed to be average
+					double cost = (load.running + 1) * (load.duration > 0 ? load.duration : average);
+					if(best == null || cost < bestCost || (cost == bestCost && load.isLessBusyThan(bestLoad))) {
+						best = node;
+						bestCost = cost;
+						bestLoad = load;
+					}
+				}
+				if(best != null)
+					return lease(best);
+			}
+		}
+		throw new AbortException("No online node matches the polling label " + label);
+	}
+
+	/**
+	 * Counts a poll towards the load of a node.
+	 */
+	private static Lease lease(Node node) {
+		synchronized(LOADS) {
+			Load load = LOADS.get(node.getNodeName());
+			if(load == null) {
+				load = new Load();
+				LOADS.put(node.getNodeName(), load);
+			}
+			load.running++;
+			load.polls++;
+			return new Lease(node, load);
+		}
+	}
+
+	/**
+	 * Returns the average poll duration of the nodes which have polled.
+	 *
+	 * @return
+	 *      The average duration in milliseconds, 1 if no node has polled.
+	 */
+	private static double averageDuration() {
+		double sum = 0;
+		int n = 0;
+		for(Load load : LOADS.values()) {
+			if(load.duration > 0) {
+				sum += load.duration;
+				n++;
+			}
+		}
+		return n > 0 ? sum / n : 1;
+	}
+
+	/**
+	 * Returns the scratch directory a job polls in on the given node.  It
+	 * is only created once the polling shell is about to run.
+	 *
+	 * @param node
+	 *      The node to poll on.
+	 *
+	 * @param project
+	 *      The job being polled.
+	 *
+	 * @return
+	 *      The scratch directory, which may not exist yet.
+	 */
+	static FilePath scratchDir(Node node, AbstractProject<?,?> project) throws AbortException {
+		return scratchRoot(node).child(project.getFullName());
+	}
+
+	/**
+	 * Returns a scratch directory on the given node, creating it if needed.
+	 *
+	 * @param node
+	 *      The node to poll on.
+	 *
+	 * @param name
+	 *      The name of the directory below the polling scratch directory.
+	 *
+	 * @return
+	 *      The scratch directory.
+	 */
+	static FilePath scratchDir(Node node, String name) throws IOException, InterruptedException {
+		FilePath dir = scratchRoot(node).child(name);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static FilePath scratchRoot(Node node) throws AbortException {
+		FilePath root = node.getRootPath();
+		if(root == null)
+			throw new AbortException("Node " + node.getDisplayName() + " is offline");
+		return root.child(SCRATCH_DIR);
+	}
+
+	static boolean isOnline(Node node) {
+		Computer c = node.toComputer();
+		return c != null && c.isOnline();
+	}
+
+	/**
+	 * A poll pending or running on a node.
+	 */
+	static final class Lease {
+		private final Node node;
+		private final Load load;
+
+		/**
+		 * When the polling shell started, 0 while the poll is pending.
+		 * Guarded by {@link #LOADS}.
+		 */
+		private long start;
+
+		private boolean released;
+
+		private Lease(Node node, Load load) {
+			this.node = node;
+			this.load = load;
+		}
+
+		/**
+		 * Returns the node to poll on.
+		 */
+		Node getNode() {
+			return node;
+		}
+
+		/**
+		 * Returns the number of polls pending or running on the node,
+		 * including this one.
+		 */
+		int getRunning() {
+			synchronized(LOADS) {
+				return load.running;
+			}
+		}
+
+		/**
+		 * Marks the start of the polling shell.
+		 */
+		void start() {
+			synchronized(LOADS) {
+				start = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Ends the poll, recording how long its polling shell took if it
+		 * ran.  A poll which was skipped, answered from the cache or by a
+		 * running poll only stops counting towards the load of the node.
+		 * Releasing a released lease does nothing.
+		 */
+		void release() {
+			synchronized(LOADS) {
+				if(released)
+					return;
+				released = true;
+				load.running--;
+				if(start == 0)
+					return;
+				long duration = Math.max(1, System.currentTimeMillis() - start);
+				if(load.duration == 0)
+					load.duration = duration;
+				else
+					load.duration += DURATION_WEIGHT * (duration - load.duration);
+			}
+		}
+	}
+
+	/**
+	 * The polling load of a node.  Guarded by {@link #LOADS}.
+	 */
+	private static final class Load {
+
+		/**
+		 * The number of polls pending or running on the node.
+		 */
+		int running;
+
+		/**
+		 * The number of polls sent to the node.
+		 */
+		long polls;
+
+		/**
+		 * The moving average of the poll durations in milliseconds, 0 if the
+		 * node has not polled yet.
+		 */
+		double duration;
+
+		/**
+		 * Breaks ties between equally loaded nodes so that polls spread
+		 * over all of them.
+		 */
+		boolean isLessBusyThan(Load other) {
+			if(running != other.running)
+				return running < other.running;
+			return polls < other.polls;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Iterator;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.scm.PollingResult;
+
+/**
+ * The result of a poll as reported by the polling shell.
+ *
+ * <p>
+ * A polling shell which refers to <tt>$SSSCM_POLL_RESULT</tt> may write its
+ * result to that file instead of signalling it with its exit code.  Each line
+ * is either <tt>key=value</tt> or a JSON object of such keys, later values
+ * override earlier ones, and unknown keys are ignored:
+ * <dl>
+ *  <dt><tt>changed</tt></dt>
+ *  <dd><tt>true</tt>/<tt>yes</tt>/<tt>significant</tt>, <tt>false</tt>/<tt>no</tt>/<tt>none</tt>,
+ *      <tt>insignificant</tt> or <tt>incomparable</tt></dd>
+ *  <dt><tt>revision</tt></dt>
+ *  <dd>The current revision, compared with the revision of the last build
+ *      unless <tt>changed</tt> is given</dd>
+ *  <dt><tt>quiet-period</tt></dt>
+ *  <dd>The quiet period in seconds of the build triggered by a change</dd>
+ *  <dt><tt>reason</tt></dt>
+ *  <dd>Why the shell reports what it reports, shown in the polling log</dd>
+ * </dl>
+ * When the polling shell uses the report, any exit code other than 0 is a
+ * polling failure.
+ */
+final class PollingReport {
+
+	/**
+	 * The environment variable naming the file the polling shell may write
+	 * its report to.
+	 */
+	static final String VARIABLE = "SSSCM_POLL_RESULT";
+
+	private PollingResult.Change change;
+	private String revision;
+	private int quietPeriod = -1;
+	private String reason;
+
+	private PollingReport() {
+	}
+
+	/**
+	 * Returns whether the polling shell refers to the report file.  The file
+	 * is only provided to polling shells which do.
+	 *
+	 * @param shellCmd
+	 *      The polling shell.
+	 *
+	 * @return
+	 *      True if the polling shell refers to <tt>$SSSCM_POLL_RESULT</tt>.
+	 */
+	static boolean isUsedBy(String shellCmd) {
+		return shellCmd.contains(VARIABLE);
+	}
+
+	/**
+	 * Parses a report.
+	 *
+	 * @param text
+	 *      The contents of the report file, or null if it was not written.
+	 *
+	 * @return
+	 *      The report, or null if there is none.
+	 */
+	static PollingReport parse(String text) throws IOException {
+		if(text == null)
+			return null;
+
+		PollingReport report = new PollingReport();
+		BufferedReader r = new BufferedReader(new StringReader(text));
+		String line;
+		while((line = r.readLine()) != null) {
+			line = line.trim();
+			if(line.length() == 0 || line.startsWith("#"))
+				continue;
+			if(line.startsWith("{")) {
+				JSONObject json;
+				try {
+					json = JSONObject.fromObject(line);
+				} catch (JSONException e) {
+					throw new IOException("Malformed polling report line: " + line);
+				}
+				for(Iterator<?> it = json.keys(); it.hasNext();) {
+					String key = (String)it.next();
+					report.set(key, json.getString(key));
+				}
+			} else {
+				int i = line.indexOf('=');
+				if(i < 0)
+					throw new IOException("Malformed polling report line: " + line);
+				report.set(line.substring(0, i).trim(), line.substring(i + 1).trim());
+			}
+		}
+		return report;
+	}
+
+	private void set(String key, String value) throws IOException {
+		if(key.equals("changed")) {
+			change = parseChange(value);
+		} else if(key.equals("revision")) {
+			revision = value.length() > 0 ? value : null;
+		} else if(key.equals("quiet-period")) {
+			try {
+				quietPeriod = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed quiet-period in polling report: " + value);
+			}
+		} else if(key.equals("reason")) {
+			reason = value;
+		}
+	}
+
+	private static PollingResult.Change parseChange(String value) throws IOException {
+		String v = value.toLowerCase();
+		if(v.equals("true") || v.equals("yes") || v.equals("1") || v.equals("significant"))
+			return PollingResult.Change.SIGNIFICANT;
+		if(v.equals("false") || v.equals("no") || v.equals("0") || v.equals("none"))
+			return PollingResult.Change.NONE;
+		if(v.equals("insignificant"))
+			return PollingResult.Change.INSIGNIFICANT;
+		if(v.equals("incomparable"))
+			return PollingResult.Change.INCOMPARABLE;
+		throw new IOException("Malformed changed in polling report: " + value);
+	}
+
+	/**
+	 * Returns the reported change.
+	 *
+	 * @return
+	 *      The change, null if not reported.
+	 */
+	PollingResult.Change getChange() {
+		return change;
+	}
+
+	/**
+	 * Returns the reported revision.
+	 *
+	 * @return
+	 *      The revision, null if not reported.
+	 */
+	String getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Returns the reported quiet period.
+	 *
+	 * @return
+	 *      The quiet period in seconds, -1 if not reported.
+	 */
+	int getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * Returns the reported reason.
+	 *
+	 * @return
+	 *      The reason, null if not reported.
+	 */
+	String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Reads the report file as UTF-8 and deletes it.  Returns null if the
+	 * polling shell did not write it.
+	 */
+	static final class ReadAndDelete implements FileCallable<String> {
+		private static final long serialVersionUID = 1L;
+
+		public String invoke(File f, VirtualChannel channel) throws IOException {
+			if(!f.isFile())
+				return null;
+			try {
+				StringBuilder buf = new StringBuilder();
+				Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+				try {
+					char[] chars = new char[1024];
+					int n;
+					while((n = r.read(chars)) >= 0)
+						buf.append(chars, 0, n);
+				} finally {
+					r.close();
+				}
+				return buf.toString();
+			} finally {
+				f.delete();
+			}
+		}
+	}
+}
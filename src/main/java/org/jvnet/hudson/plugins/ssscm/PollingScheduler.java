@@ -0,0 +1,221 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+/**
+ * Limits how many polling shells run at the same time.
+ *
+ * <p>
+ * There is a global limit on all polling shells, and jobs may declare a
+ * concurrency key, such as the host they poll, with a limit of its own.  A
+ * poll first waits for a slot of its key and only then for a global slot, so
+ * that polls queued behind a slow key do not hold global slots.  Waiting polls
+ * are served in arrival order.
+ *
+ * <p>
+ * Polls wait in the polling threads of Hudson, which are shared by all jobs.
+ * A poll therefore only waits briefly for a slot of its key and is skipped
+ * if none frees up, so that the polls of a stuck key cannot take up all
+ * polling threads and starve the other jobs.
+ */
+final class PollingScheduler {
+
+	/**
+	 * The limiter of all polling shells.
+	 */
+	private static final Limiter GLOBAL = new Limiter();
+
+	/**
+	 * The limiters of the concurrency keys declared by jobs.
+	 */
+	private static final Map<String, Limiter> KEYS = new HashMap<String, Limiter>();
+
+	/**
+	 * How long a poll waits for a slot of its key in milliseconds.
+	 */
+	private static final long KEY_WAIT = 10000;
+
+	private PollingScheduler() {
+	}
+
+	/**
+	 * Waits for a slot to run a polling shell in.
+	 *
+	 * @param key
+	 *      The concurrency key of the job, or null if it has none.
+	 *
+	 * @param keyLimit
+	 *      The number of polling shells allowed to run at once for the key,
+	 *      0 for no limit.
+	 *
+	 * @param globalLimit
+	 *      The number of polling shells allowed to run at once overall, 0 for
+	 *      no limit.
+	 *
+	 * @param listener
+	 *      Told when the poll has to wait.
+	 *
+	 * @return
+	 *      The slot, which must be released once the polling shell is done.
+	 *
+	 * @throws AbortException
+	 *      If no slot of the key freed up in time.  No slot is held then.
+	 *
+	 * @throws InterruptedException
+	 *      If interrupted while waiting.  No slot is held then.
+	 */
+	static Slot acquire(String key, int keyLimit, int globalLimit, TaskListener listener)
+			throws AbortException, InterruptedException {
+		return acquire(key, keyLimit, globalLimit, KEY_WAIT, listener);
+	}
+
+	/**
+	 * Waits for a slot to run a polling shell in, see
+	 * {@link #acquire(String, int, int, TaskListener)}.
+	 *
+	 * @param keyWait
+	 *      How long to wait for a slot of the key in milliseconds.
+	 */
+	static Slot acquire(String key, int keyLimit, int globalLimit, long keyWait, TaskListener listener)
+			throws AbortException, InterruptedException {
+		Limiter keyed = null;
+		if(key != null && keyLimit > 0) {
+			synchronized(KEYS) {
+				keyed = KEYS.get(key);
+				if(keyed == null) {
+					keyed = new Limiter();
+					KEYS.put(key, keyed);
+				}
+			}
+			if(!keyed.tryAcquire(keyLimit)) {
+				listener.getLogger().println("Waiting for one of the " + keyLimit + " polling slots of " + key);
+				if(!keyed.acquire(keyLimit, keyWait))
+					throw new AbortException(keyed.getRunning() + " polls of " + key + " still running, skipping this poll");
+			}
+		}
+
+		if(globalLimit > 0) {
+			try {
+				if(!GLOBAL.tryAcquire(globalLimit)) {
+					listener.getLogger().println("Waiting for one of the " + globalLimit + " polling slots");
+					GLOBAL.acquire(globalLimit, 0);
+				}
+			} catch (InterruptedException e) {
+				if(keyed != null)
+					keyed.release();
+				throw e;
+			}
+		}
+		return new Slot(keyed, globalLimit > 0);
+	}
+
+	/**
+	 * A slot held by a running polling shell.
+	 */
+	static final class Slot {
+		private final Limiter keyed;
+		private final boolean global;
+
+		private Slot(Limiter keyed, boolean global) {
+			this.keyed = keyed;
+			this.global = global;
+		}
+
+		/**
+		 * Releases the slot for the next waiting poll.
+		 */
+		void release() {
+			if(global)
+				GLOBAL.release();
+			if(keyed != null)
+				keyed.release();
+		}
+	}
+
+	/**
+	 * A counting limiter serving waiters in arrival order.  The limit is given
+	 * on every acquisition, so that a changed configuration takes effect
+	 * without replacing the limiter.
+	 */
+	private static final class Limiter {
+		private final LinkedList<Thread> waiting = new LinkedList<Thread>();
+		private int running;
+
+		synchronized boolean tryAcquire(int limit) {
+			if(!waiting.isEmpty() || running >= limit)
+				return false;
+			running++;
+			return true;
+		}
+
+		/**
+		 * Waits for a slot.
+		 *
+		 * @param timeout
+		 *      How long to wait in milliseconds, 0 to wait forever.
+		 *
+		 * @return
+		 *      True if a slot was acquired, false if the timeout expired.
+		 */
+		synchronized boolean acquire(int limit, long timeout) throws InterruptedException {
+			Thread self = Thread.currentThread();
+			long deadline = System.currentTimeMillis() + timeout;
+			waiting.add(self);
+			try {
+				while(waiting.getFirst() != self || running >= limit) {
+					long left = deadline - System.currentTimeMillis();
+					if(timeout > 0 && left <= 0) {
+						waiting.remove(self);
+						notifyAll();
+						return false;
+					}
+					wait(timeout > 0 ? left : 0);
+				}
+			} catch (InterruptedException e) {
+				waiting.remove(self);
+				notifyAll();
+				throw e;
+			}
+			waiting.removeFirst();
+			running++;
+			notifyAll();
+			return true;
+		}
+
+		synchronized int getRunning() {
+			return running;
+		}
+
+		synchronized void release() {
+			running--;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Writes whole lines prefixed with a tag to a log shared with other
+ * writers, so that the output of concurrent shells does not interleave
+ * within a line.  Only a flush writes part of a line, and the rest of it is
+ * written without a prefix.
+ */
+final class PrefixedOutputStream extends OutputStream {
+
+	private final PrintStream out;
+	private final byte[] prefix;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+	/**
+	 * False while the start of the current line has been flushed already.
+	 */
+	private boolean atLineStart = true;
+
+	PrefixedOutputStream(PrintStream out, String prefix) {
+		this.out = out;
+		this.prefix = prefix.getBytes();
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		line.write(b);
+		if(b == '\n')
+			flushLine();
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		for(int i = off; i < end; i++) {
+			if(b[i] == '\n') {
+				line.write(b, off, i + 1 - off);
+				flushLine();
+				off = i + 1;
+			}
+		}
+		line.write(b, off, end - off);
+	}
+
+	/**
+	 * Writes a partial last line, if any.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if(line.size() > 0) {
+			flushLine();
+			atLineStart = false;
+		}
+	}
+
+	/**
+	 * Writes the buffered line, prefixed if it starts a line.
+	 */
+	private void flushLine() throws IOException {
+		synchronized(out) {
+			if(atLineStart)
+				out.write(prefix);
+			line.writeTo(out);
+			out.flush();
+		}
+		line.reset();
+		atLineStart = true;
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * A per-node cache of script files.
+ *
+ * <p>
+ * Each script is written once under a name derived from a digest of its text
+ * and is reused by every later execution of the same text on the same node,
+ * after checking that it still exists there.  The least recently used scripts are deleted once the cache grows past its
+ * capacity, but not while an execution still uses them.
+ *
+ * <p>
+ * The scripts and the other temporary files of the plugin live below the
+ * root directory of the node, which only the Hudson user may write to,
+ * rather than in a shared temporary directory.
+ */
+final class ScriptCache {
+
+	private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+
+	/**
+	 * The directory below the node root holding the cached scripts and other
+	 * temporary files of the plugin.
+	 */
+	private static final String DIRECTORY = "ssscm-tmp";
+
+	/**
+	 * One cache per node, keyed by the channel to that node.  A reconnected
+	 * node gets a new channel and so starts with an empty cache.  The caches
+	 * hold paths rather than {@link FilePath}s, so that they do not keep the
+	 * channel of a disconnected node alive.
+	 */
+	private static final Map<VirtualChannel, ScriptCache> CACHES = new WeakHashMap<VirtualChannel, ScriptCache>();
+
+	/**
+	 * The cached scripts in least recently used order, keyed by digest.
+	 */
+	private final LinkedHashMap<String, Entry> scripts = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * The scripts in use, keyed by path, including those evicted meanwhile.
+	 */
+	private final Map<String, Entry> inUse = new HashMap<String, Entry>();
+
+	/**
+	 * The path of the directory on the node holding the cached scripts and
+	 * other temporary files of the plugin.  Resolved lazily.
+	 */
+	private String root;
+
+	private ScriptCache() {
+	}
+
+	/**
+	 * Returns the cache for the node the given workspace lives on.
+	 *
+	 * @param workspace
+	 *      Any directory on the node.
+	 *
+	 * @return
+	 *      The script cache of that node.
+	 */
+	static synchronized ScriptCache of(FilePath workspace) {
+		VirtualChannel channel = workspace.getChannel();
+		ScriptCache cache = CACHES.get(channel);
+		if(cache == null) {
+			cache = new ScriptCache();
+			CACHES.put(channel, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns a script file holding the given text, writing it to the node
+	 * only if it is not already cached or has been removed from the node
+	 * meanwhile.  The script stays on the node until it is handed back with
+	 * {@link #release}.
+	 *
+	 * @param workspace
+	 *      Any directory on the node, used to resolve the cache directory.
+	 *
+	 * @param prefix
+	 *      The script file name prefix.
+	 *
+	 * @param ext
+	 *      The script file extension.
+	 *
+	 * @param contents
+	 *      The script text.
+	 *
+	 * @param digest
+	 *      The digest of the script text, see {@link LaunchTemplate#getDigest}.
+	 *
+	 * @param capacity
+	 *      The maximum number of scripts to keep on the node.
+	 *
+	 * @return
+	 *      The cached script file.
+	 *
+	 * @throws IOException
+	 *      If the script could not be written.
+	 *
+	 * @throws InterruptedException
+	 *      If interrupted while talking to the node.
+	 */
+	FilePath get(FilePath workspace, String prefix, String ext, String contents, String digest, int capacity) throws IOException, InterruptedException {
+		VirtualChannel channel = workspace.getChannel();
+		FilePath hit = null;
+		synchronized(this) {
+			Entry entry = scripts.get(digest);
+			if(entry != null)
+				hit = entry.pin(channel);
+		}
+		if(hit != null) {
+			// the directory may have been cleaned behind our back
+			try {
+				if(!hit.exists())
+					hit.act(new WriteIfAbsent(contents));
+			} catch (IOException e) {
+				release(hit);
+				throw e;
+			}
+			return hit;
+		}
+
+		FilePath script = getDirectory(workspace).child(prefix + digest + ext);
+		script.act(new WriteIfAbsent(contents));
+
+		List<String> evicted = new ArrayList<String>();
+		FilePath pinned;
+		synchronized(this) {
+			Entry entry = scripts.get(digest);
+			if(entry == null) {
+				// an evicted script may still be in use
+				entry = inUse.get(script.getRemote());
+				if(entry == null)
+					entry = new Entry(script.getRemote());
+				entry.evicted = false;
+				scripts.put(digest, entry);
+			}
+			pinned = entry.pin(channel);
+			Iterator<Entry> it = scripts.values().iterator();
+			while(scripts.size() > capacity && it.hasNext()) {
+				Entry old = it.next();
+				it.remove();
+				old.evicted = true;
+				// scripts in use are deleted once released
+				if(old.pins == 0)
+					evicted.add(old.path);
+			}
+		}
+		for(String old : evicted)
+			delete(new FilePath(channel, old));
+		return pinned;
+	}
+
+	/**
+	 * Hands back a script returned by {@link #get} once the execution is
+	 * done with it, deleting it if it has been evicted meanwhile.
+	 *
+	 * @param script
+	 *      The script file returned by {@link #get}.
+	 */
+	void release(FilePath script) throws InterruptedException {
+		synchronized(this) {
+			Entry entry = inUse.get(script.getRemote());
+			if(entry == null || --entry.pins > 0)
+				return;
+			inUse.remove(entry.path);
+			if(!entry.evicted)
+				return;
+		}
+		delete(script);
+	}
+
+	/**
+	 * Forgets a cached script so that it is written again on next use, for
+	 * instance after it has been removed from the node behind our back.
+	 *
+	 * @param script
+	 *      The script file returned by {@link #get}.
+	 */
+	synchronized void invalidate(FilePath script) {
+		for(Iterator<Entry> it = scripts.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if(entry.path.equals(script.getRemote())) {
+				it.remove();
+				entry.evicted = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory on the node holding the cached scripts, which
+	 * may also hold other temporary files of the plugin.
+	 *
+	 * @param workspace
+	 *      Any directory on the node, used to resolve the directory.
+	 *
+	 * @return
+	 *      The directory below the root directory of the node.
+	 *
+	 * @throws AbortException
+	 *      If the node is offline.
+	 */
+	FilePath getDirectory(FilePath workspace) throws IOException, InterruptedException {
+		synchronized(this) {
+			if(root != null)
+				return new FilePath(workspace.getChannel(), root);
+		}
+		FilePath dir = rootOf(workspace).child(DIRECTORY);
+		dir.mkdirs();
+		synchronized(this) {
+			root = dir.getRemote();
+		}
+		return dir;
+	}
+
+	/**
+	 * Returns the root directory of the node a file lives on.
+	 */
+	private static FilePath rootOf(FilePath workspace) throws AbortException {
+		Computer c = Nodes.computerOf(workspace);
+		Node node = c != null ? c.getNode() : null;
+		FilePath root = node != null ? node.getRootPath() : null;
+		if(root == null)
+			throw new AbortException("The node of " + workspace.getRemote() + " is offline");
+		return root;
+	}
+
+	private static void delete(FilePath script) throws InterruptedException {
+		try {
+			script.delete();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to evict cached script " + script, e);
+		}
+	}
+
+	/**
+	 * A cached script.  Guarded by the cache.
+	 */
+	private final class Entry {
+		final String path;
+
+		/**
+		 * The number of executions using the script.
+		 */
+		int pins;
+
+		/**
+		 * True once the script is no longer in the cache.
+		 */
+		boolean evicted;
+
+		Entry(String path) {
+			this.path = path;
+		}
+
+		FilePath pin(VirtualChannel channel) {
+			if(pins++ == 0)
+				inUse.put(path, this);
+			return new FilePath(channel, path);
+		}
+	}
+
+	/**
+	 * Writes the script unless it already exists.  The text goes to a
+	 * temporary file first and is renamed into place so that a concurrent
+	 * execution never sees a partially written script.
+	 */
+	private static final class WriteIfAbsent implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String contents;
+
+		WriteIfAbsent(String contents) {
+			this.contents = contents;
+		}
+
+		public Void invoke(File f, VirtualChannel channel) throws IOException {
+			if(f.isFile())
+				return null;
+			f.getParentFile().mkdirs();
+			File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp));
+			try {
+				w.write(contents);
+			} finally {
+				w.close();
+			}
+			if(!tmp.renameTo(f)) {
+				tmp.delete();
+				if(!f.isFile())
+					throw new IOException("Failed to create " + f);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+
+/**
+ * Computes the environment variables passed to a launched shell.
+ *
+ * <p>
+ * By default this is the environment of the controller, as it always has
+ * been.  With {@link ShellScriptSCM.DescriptorImpl#isUseBuildEnvironment()}
+ * it is the environment of the build, or for polling the job name, the
+ * workspace and the global and node environment variables, filtered by the
+ * configured patterns.  Only variables which differ from the environment the
+ * node already has are passed, since the launched shell inherits that
+ * anyway.  Variables of the node matching the exclude pattern are passed
+ * empty, which unsets them in the launched shell.
+ */
+final class ScriptEnvironment {
+
+	/**
+	 * The environment of each node, keyed by the channel to that node.
+	 */
+	private static final Map<VirtualChannel, EnvVars> NODE_ENVIRONMENTS = new WeakHashMap<VirtualChannel, EnvVars>();
+
+	private ScriptEnvironment() {
+	}
+
+	/**
+	 * Returns the environment of a shell run for a build.
+	 *
+	 * @param build
+	 *      The build.
+	 *
+	 * @param workspace
+	 *      The directory the shell runs in.
+	 *
+	 * @param listener
+	 *      The TaskListener
+	 *
+	 * @return
+	 *      The environment variables to pass to the shell.
+	 */
+	static Map<String,String> forBuild(AbstractBuild<?,?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+		ShellScriptSCM.DescriptorImpl descriptor = descriptor();
+		if(!descriptor.isUseBuildEnvironment())
+			return new HashMap<String,String>(System.getenv());
+		return delta(filter(build.getEnvironment(listener), descriptor), workspace, descriptor);
+	}
+
+	/**
+	 * Returns the environment of a shell run for polling a job.
+	 *
+	 * @param project
+	 *      The job being polled.
+	 *
+	 * @param workspace
+	 *      The directory the shell runs in.
+	 *
+	 * @return
+	 *      The environment variables to pass to the shell.
+	 */
+	static Map<String,String> forPoll(AbstractProject<?,?> project, FilePath workspace) throws IOException, InterruptedException {
+		ShellScriptSCM.DescriptorImpl descriptor = descriptor();
+		if(!descriptor.isUseBuildEnvironment())
+			return new HashMap<String,String>(System.getenv());
+
+		EnvVars env = new EnvVars();
+		EnvironmentVariablesNodeProperty global = Hudson.getInstance().getGlobalNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+		if(global != null)
+			env.putAll(global.getEnvVars());
+		Computer computer = Nodes.computerOf(workspace);
+		Node node = computer != null ? computer.getNode() : null;
+		if(node != null) {
+			EnvironmentVariablesNodeProperty local = node.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+			if(local != null)
+				env.putAll(local.getEnvVars());
+		}
+		env.put("JOB_NAME", project.getFullName());
+		env.put("WORKSPACE", workspace.getRemote());
+		return delta(filter(env, descriptor), workspace, descriptor);
+	}
+
+	/**
+	 * Returns the environment variables a polling shell refers to, so that
+	 * polls with a different value for them do not share results.
+	 *
+	 * @param shellCmd
+	 *      The polling shell.
+	 *
+	 * @param env
+	 *      The environment of the polling shell.
+	 *
+	 * @return
+	 *      The variables referred to, as <tt>NAME=value</tt> lines in name order.
+	 */
+	static String referencedBy(String shellCmd, Map<String,String> env) {
+		StringBuilder buf = new StringBuilder();
+		for(Map.Entry<String,String> e : new EnvVars(env).entrySet()) {
+			if(shellCmd.contains("$" + e.getKey()) || shellCmd.contains("${" + e.getKey() + "}"))
+				buf.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		}
+		return buf.toString();
+	}
+
+	private static ShellScriptSCM.DescriptorImpl descriptor() {
+		return Hudson.getInstance().getDescriptorByType(ShellScriptSCM.DescriptorImpl.class);
+	}
+
+	private static EnvVars filter(EnvVars env, ShellScriptSCM.DescriptorImpl descriptor) {
+		Pattern includes = descriptor.getEnvironmentIncludePattern();
+		Pattern excludes = descriptor.getEnvironmentExcludePattern();
+		for(Iterator<String> it = env.keySet().iterator(); it.hasNext();) {
+			String name = it.next();
+			if((includes != null && !includes.matcher(name).matches())
+					|| (excludes != null && excludes.matcher(name).matches()))
+				it.remove();
+		}
+		return env;
+	}
+
+	/**
+	 * Drops the variables which the node already has with the same value,
+	 * and empties the excluded variables the node has, since launchers
+	 * unset empty variables.
+	 */
+	private static Map<String,String> delta(EnvVars env, FilePath workspace, ShellScriptSCM.DescriptorImpl descriptor) throws IOException, InterruptedException {
+		EnvVars node = nodeEnvironment(workspace.getChannel());
+		Map<String,String> delta = new HashMap<String,String>();
+		for(Map.Entry<String,String> e : env.entrySet()) {
+			if(!e.getValue().equals(node.get(e.getKey())))
+				delta.put(e.getKey(), e.getValue());
+		}
+		Pattern excludes = descriptor.getEnvironmentExcludePattern();
+		if(excludes != null) {
+			for(String name : node.keySet()) {
+				if(excludes.matcher(name).matches())
+					delta.put(name, "");
+			}
+		}
+		return delta;
+	}
+
+	private static EnvVars nodeEnvironment(VirtualChannel channel) throws IOException, InterruptedException {
+		synchronized(NODE_ENVIRONMENTS) {
+			EnvVars env = NODE_ENVIRONMENTS.get(channel);
+			if(env != null)
+				return env;
+		}
+		EnvVars env = EnvVars.getRemote(channel);
+		synchronized(NODE_ENVIRONMENTS) {
+			NODE_ENVIRONMENTS.put(channel, env);
+		}
+		return env;
+	}
+}
@@ -0,0 +1,379 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import hudson.FilePath;
+import hudson.model.Computer;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Statistics of the shells the plugin runs, per job and per node.
+ *
+ * <p>
+ * Each shell run records its wall time in a histogram, its exit code, or a
+ * timeout, whether a process had to be launched for it and how many bytes
+ * of its output went to the log.  The statistics are kept in memory since
+ * startup, and dropped when their job or node is deleted, see
+ * {@link ShellMetricsAction}.
+ */
+final class ShellMetrics {
+
+	static final String CHECKOUT = "checkout";
+	static final String POLLING = "polling";
+
+	/**
+	 * The upper bounds of the wall time histogram buckets in milliseconds.
+	 */
+	private static final long[] BUCKETS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+
+	private final ConcurrentMap<String, Stats> jobs = new ConcurrentHashMap<String, Stats>();
+
+	private final ConcurrentMap<String, Stats> nodes = new ConcurrentHashMap<String, Stats>();
+
+	/**
+	 * Records a shell run.
+	 *
+	 * @param job
+	 *      The full name of the job the shell ran for, {@link BatchPoll#NAME}
+	 *      for the batch polling shell.
+	 *
+	 * @param workspace
+	 *      The directory the shell ran in, used to find the node.
+	 *
+	 * @param shell
+	 *      {@link #CHECKOUT} or {@link #POLLING}.
+	 *
+	 * @param millis
+	 *      The wall time of the run.
+	 *
+	 * @param rc
+	 *      The exit code of the shell, {@link ShellScriptSCM#TIMED_OUT} if it
+	 *      was killed after the timeout.
+	 *
+	 * @param logged
+	 *      The number of bytes the shell wrote to the log.
+	 *
+	 * @param launched
+	 *      True if a process was launched for the run.
+	 */
+	void executed(String job, FilePath workspace, String shell, long millis, int rc, long logged, boolean launched) {
+		stats(jobs, job, shell).executed(millis, rc, logged, launched);
+		stats(nodes, nodeOf(workspace), shell).executed(millis, rc, logged, launched);
+	}
+
+	/**
+	 * Records a shell which did not run because its script file could not
+	 * be created.
+	 */
+	void scriptFailed(String job, FilePath workspace, String shell) {
+		stats(jobs, job, shell).scriptFailed();
+		stats(nodes, nodeOf(workspace), shell).scriptFailed();
+	}
+
+	/**
+	 * Drops the statistics of a job, for instance after it was deleted.
+	 *
+	 * @param job
+	 *      The full name of the job.
+	 */
+	void removeJob(String job) {
+		for(Iterator<Stats> it = jobs.values().iterator(); it.hasNext();) {
+			if(it.next().name.equals(job))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Drops the statistics of the nodes which no longer exist.
+	 *
+	 * @param names
+	 *      The names of the existing nodes, as the statistics name them.
+	 */
+	void retainNodes(Set<String> names) {
+		for(Iterator<Stats> it = nodes.values().iterator(); it.hasNext();) {
+			if(!names.contains(it.next().name))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Returns the statistics per job, sorted by job and shell.
+	 */
+	List<Stats> getJobs() {
+		return sorted(jobs);
+	}
+
+	/**
+	 * Returns the statistics per node, sorted by node and shell.
+	 */
+	List<Stats> getNodes() {
+		return sorted(nodes);
+	}
+
+	/**
+	 * Returns the number of runs of the given shell which timed out.
+	 */
+	long getTimeouts(String shell) {
+		long timeouts = 0;
+		for(Stats s : jobs.values()) {
+			if(s.shell.equals(shell))
+				timeouts += s.getTimeouts();
+		}
+		return timeouts;
+	}
+
+	/**
+	 * Writes the statistics in the Prometheus text format.
+	 */
+	void writePrometheus(PrintWriter w) {
+		write(w, "job", getJobs());
+		write(w, "node", getNodes());
+		w.flush();
+	}
+
+	private static void write(PrintWriter w, String scope, List<Stats> stats) {
+		String prefix = "ssscm_" + scope + "_shell_";
+
+		header(w, prefix + "duration_seconds", "histogram", "Wall time of shell runs per " + scope + ".");
+		for(Stats s : stats) {
+			long[] buckets = s.getBuckets();
+			for(int i = 0; i < BUCKETS.length; i++)
+				sample(w, prefix + "duration_seconds_bucket", s, scope, "le", Double.toString(BUCKETS[i] / 1000.0), buckets[i]);
+			sample(w, prefix + "duration_seconds_bucket", s, scope, "le", "+Inf", buckets[BUCKETS.length]);
+			w.println(prefix + "duration_seconds_sum" + labels(s, scope, null, null) + " " + s.getTotalMillis() / 1000.0);
+			sample(w, prefix + "duration_seconds_count", s, scope, null, null, buckets[BUCKETS.length]);
+		}
+
+		header(w, prefix + "exits_total", "counter", "Shell runs per " + scope + " and exit code.");
+		for(Stats s : stats) {
+			for(Map.Entry<String, Long> e : s.getExitCodes().entrySet())
+				sample(w, prefix + "exits_total", s, scope, "code", e.getKey(), e.getValue().longValue());
+		}
+
+		header(w, prefix + "timeouts_total", "counter", "Shell runs killed after their timeout per " + scope + ".");
+		for(Stats s : stats)
+			sample(w, prefix + "timeouts_total", s, scope, null, null, s.getTimeouts());
+
+		header(w, prefix + "script_failures_total", "counter", "Shells whose script file could not be created per " + scope + ".");
+		for(Stats s : stats)
+			sample(w, prefix + "script_failures_total", s, scope, null, null, s.getScriptFailures());
+
+		header(w, prefix + "launches_total", "counter", "Processes launched for shell runs per " + scope + ".");
+		for(Stats s : stats)
+			sample(w, prefix + "launches_total", s, scope, null, null, s.getLaunches());
+
+		header(w, prefix + "logged_bytes_total", "counter", "Bytes of shell output written to the log per " + scope + ".");
+		for(Stats s : stats)
+			sample(w, prefix + "logged_bytes_total", s, scope, null, null, s.getLoggedBytes());
+	}
+
+	private static void header(PrintWriter w, String name, String type, String help) {
+		w.println("# HELP " + name + " " + help);
+		w.println("# TYPE " + name + " " + type);
+	}
+
+	private static void sample(PrintWriter w, String name, Stats s, String scope, String label, String value, long sample) {
+		w.println(name + labels(s, scope, label, value) + " " + sample);
+	}
+
+	private static String labels(Stats s, String scope, String label, String value) {
+		StringBuilder b = new StringBuilder();
+		b.append('{').append(scope).append("=\"").append(escape(s.name)).append("\",shell=\"").append(s.shell).append('"');
+		if(label != null)
+			b.append(',').append(label).append("=\"").append(escape(value)).append('"');
+		return b.append('}').toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static Stats stats(ConcurrentMap<String, Stats> map, String name, String shell) {
+		String key = shell + '\0' + name;
+		Stats stats = map.get(key);
+		if(stats == null) {
+			Stats created = new Stats(name, shell);
+			stats = map.putIfAbsent(key, created);
+			if(stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	private static List<Stats> sorted(ConcurrentMap<String, Stats> map) {
+		List<Stats> stats = new ArrayList<Stats>(map.values());
+		Collections.sort(stats);
+		return stats;
+	}
+
+	private static String nodeOf(FilePath workspace) {
+		Computer c = Nodes.computerOf(workspace);
+		return c != null ? nameOf(c) : "unknown";
+	}
+
+	/**
+	 * Returns the name the statistics of a node go by.
+	 */
+	static String nameOf(Computer c) {
+		return c.getDisplayName();
+	}
+
+	/**
+	 * The statistics of one shell of one job or node.
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Stats implements Comparable<Stats> {
+		private final String name;
+		private final String shell;
+
+		/**
+		 * The number of runs per histogram bucket, the last one counting the
+		 * runs longer than the largest bound.
+		 */
+		private final long[] buckets = new long[BUCKETS.length + 1];
+		private final Map<Integer, Long> exitCodes = new TreeMap<Integer, Long>();
+		private long totalMillis;
+		private long timeouts;
+		private long scriptFailures;
+		private long launches;
+		private long loggedBytes;
+
+		Stats(String name, String shell) {
+			this.name = name;
+			this.shell = shell;
+		}
+
+		synchronized void executed(long millis, int rc, long logged, boolean launched) {
+			int i = 0;
+			while(i < BUCKETS.length && millis > BUCKETS[i])
+				i++;
+			buckets[i]++;
+			totalMillis += millis;
+			if(rc == ShellScriptSCM.TIMED_OUT) {
+				timeouts++;
+			} else {
+				Long count = exitCodes.get(rc);
+				exitCodes.put(rc, count == null ? 1L : count + 1);
+			}
+			loggedBytes += logged;
+			if(launched)
+				launches++;
+		}
+
+		synchronized void scriptFailed() {
+			scriptFailures++;
+		}
+
+		/**
+		 * Returns the name of the job or node.
+		 */
+		@Exported
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the shell, <tt>checkout</tt> or <tt>polling</tt>.
+		 */
+		@Exported
+		public String getShell() {
+			return shell;
+		}
+
+		/**
+		 * Returns the upper bounds of the histogram buckets in milliseconds.
+		 */
+		@Exported
+		public long[] getBucketBounds() {
+			return BUCKETS.clone();
+		}
+
+		/**
+		 * Returns the cumulative number of runs per histogram bucket, with one
+		 * more entry than {@link #getBucketBounds} counting all runs.
+		 */
+		@Exported
+		public synchronized long[] getBuckets() {
+			long[] cumulative = new long[buckets.length];
+			long sum = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				sum += buckets[i];
+				cumulative[i] = sum;
+			}
+			return cumulative;
+		}
+
+		@Exported
+		public synchronized long getTotalMillis() {
+			return totalMillis;
+		}
+
+		/**
+		 * Returns the number of runs per exit code.
+		 */
+		@Exported
+		public synchronized Map<String, Long> getExitCodes() {
+			Map<String, Long> codes = new TreeMap<String, Long>();
+			for(Map.Entry<Integer, Long> e : exitCodes.entrySet())
+				codes.put(e.getKey().toString(), e.getValue());
+			return codes;
+		}
+
+		@Exported
+		public synchronized long getTimeouts() {
+			return timeouts;
+		}
+
+		@Exported
+		public synchronized long getScriptFailures() {
+			return scriptFailures;
+		}
+
+		@Exported
+		public synchronized long getLaunches() {
+			return launches;
+		}
+
+		@Exported
+		public synchronized long getLoggedBytes() {
+			return loggedBytes;
+		}
+
+		public int compareTo(Stats o) {
+			int c = name.compareTo(o.name);
+			return c != 0 ? c : shell.compareTo(o.shell);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.model.listeners.ItemListener;
+import hudson.slaves.ComputerListener;
+
+/**
+ * Serves the statistics of the shells run by {@link ShellScriptSCM} at
+ * <tt>/ssscm-metrics/api/</tt> and in the Prometheus text format at
+ * <tt>/ssscm-metrics/prometheus</tt>, see {@link ShellMetrics}.
+ */
+@Extension
+@ExportedBean
+public class ShellMetricsAction implements RootAction {
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return "ssscm-metrics";
+	}
+
+	public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		getDescriptor().doPrometheus(req, rsp);
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	/**
+	 * @see ShellScriptSCM.DescriptorImpl#getPollingTimeouts
+	 */
+	@Exported
+	public long getPollingTimeouts() {
+		return getDescriptor().getPollingTimeouts();
+	}
+
+	/**
+	 * @see ShellScriptSCM.DescriptorImpl#getJobMetrics
+	 */
+	@Exported
+	public List<ShellMetrics.Stats> getJobMetrics() {
+		return getDescriptor().getJobMetrics();
+	}
+
+	/**
+	 * @see ShellScriptSCM.DescriptorImpl#getNodeMetrics
+	 */
+	@Exported
+	public List<ShellMetrics.Stats> getNodeMetrics() {
+		return getDescriptor().getNodeMetrics();
+	}
+
+	private static ShellScriptSCM.DescriptorImpl getDescriptor() {
+		return Hudson.getInstance().getDescriptorByType(ShellScriptSCM.DescriptorImpl.class);
+	}
+
+	/**
+	 * Drops the statistics of deleted and renamed jobs.
+	 */
+	@Extension
+	public static final class JobListener extends ItemListener {
+		@Override
+		public void onDeleted(Item item) {
+			getDescriptor().getMetrics().removeJob(item.getFullName());
+		}
+
+		@Override
+		public void onRenamed(Item item, String oldName, String newName) {
+			String fullName = item.getFullName();
+			int slash = fullName.lastIndexOf('/');
+			getDescriptor().getMetrics().removeJob(fullName.substring(0, slash + 1) + oldName);
+		}
+	}
+
+	/**
+	 * Drops the statistics of removed nodes.
+	 */
+	@Extension
+	public static final class NodeListener extends ComputerListener {
+		@Override
+		public void onConfigurationChange() {
+			Set<String> names = new HashSet<String>();
+			for(Computer c : Hudson.getInstance().getComputers())
+				names.add(ShellMetrics.nameOf(c));
+			getDescriptor().getMetrics().retainNodes(names);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+/**
+ * One change written to the changelog by the checkout shell.
+ */
+public class ShellScriptChangeLogEntry extends ChangeLogSet.Entry {
+
+	private final String revision;
+	private final String author;
+	private final long timestamp;
+	private final String msg;
+	private final List<String> paths;
+
+	/**
+	 * Creates the changelog entry.
+	 *
+	 * @param revision
+	 *      The revision of the change, or null if unknown.
+	 *
+	 * @param author
+	 *      The author of the change, or null if unknown.
+	 *
+	 * @param timestamp
+	 *      When the change was made in milliseconds since the epoch, -1 if
+	 *      unknown.
+	 *
+	 * @param msg
+	 *      The message of the change.
+	 *
+	 * @param paths
+	 *      The paths affected by the change.
+	 */
+	ShellScriptChangeLogEntry(String revision, String author, long timestamp, String msg, List<String> paths) {
+		this.revision = revision;
+		this.author = author;
+		this.timestamp = timestamp;
+		this.msg = msg;
+		this.paths = paths;
+	}
+
+	@Override
+	protected void setParent(ChangeLogSet parent) {
+		super.setParent(parent);
+	}
+
+	/**
+	 * Returns the revision of the change.
+	 *
+	 * @return
+	 *      The revision, null if unknown.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Returns the revision of the change, under the name later versions of
+	 * {@link ChangeLogSet.Entry} use.
+	 *
+	 * @return
+	 *      The revision, null if unknown.
+	 */
+	public String getCommitId() {
+		return revision;
+	}
+
+	/**
+	 * Returns when the change was made.
+	 *
+	 * @return
+	 *      The time in milliseconds since the epoch, -1 if unknown.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String getMsg() {
+		return msg;
+	}
+
+	@Override
+	public User getAuthor() {
+		return author != null ? User.get(author) : User.getUnknown();
+	}
+
+	@Override
+	public Collection<String> getAffectedPaths() {
+		return Collections.unmodifiableList(paths);
+	}
+}
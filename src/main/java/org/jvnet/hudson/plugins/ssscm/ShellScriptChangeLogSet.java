@@ -0,0 +1,240 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import hudson.model.AbstractBuild;
+import hudson.scm.ChangeLogSet;
+
+/**
+ * The changes written to the changelog by the checkout shell.
+ *
+ * <p>
+ * The changelog is read once, one line at a time, and only its first
+ * {@link #MAX_ENTRIES} entries are kept, so that checkouts with a very large
+ * number of changes do not fill the memory.  The file is closed as soon as
+ * these entries have been read.
+ *
+ * <p>
+ * Each line of the changelog is one change, either a JSON object such as
+ * <pre>
+ * {"revision":"4711", "author":"jdoe", "timestamp":1300000000000, "msg":"Fix the build", "paths":["src/Foo.java"]}
+ * </pre>
+ * or, if it does not start with <tt>{</tt>, the plain message of the change.
+ * Empty lines are skipped.  The file is read as UTF-8.
+ */
+public class ShellScriptChangeLogSet extends ChangeLogSet<ShellScriptChangeLogEntry> {
+
+	private static final Logger LOGGER = Logger.getLogger(ShellScriptChangeLogSet.class.getName());
+
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The number of entries read from the changelog at most.
+	 */
+	static final int MAX_ENTRIES = 1000;
+
+	/**
+	 * The changelog file in the build directory.
+	 */
+	private final File changelogFile;
+
+	/**
+	 * The first entries of the changelog, null until read.
+	 */
+	private volatile List<ShellScriptChangeLogEntry> entries;
+
+	/**
+	 * Whether the changelog holds more than {@link #MAX_ENTRIES} entries.
+	 */
+	private volatile boolean truncated;
+
+	ShellScriptChangeLogSet(AbstractBuild<?,?> build, File changelogFile) {
+		super(build);
+		this.changelogFile = changelogFile;
+	}
+
+	@Override
+	public boolean isEmptySet() {
+		return getEntries().isEmpty();
+	}
+
+	/**
+	 * Returns the first entries of the changelog.
+	 *
+	 * @param max
+	 *      The number of entries to return at most.
+	 *
+	 * @return
+	 *      The entries.
+	 */
+	public List<ShellScriptChangeLogEntry> head(int max) {
+		List<ShellScriptChangeLogEntry> entries = getEntries();
+		return entries.subList(0, Math.min(max, entries.size()));
+	}
+
+	/**
+	 * Returns whether the changelog holds more entries than are shown.
+	 *
+	 * @return
+	 *      True if entries after the first {@link #MAX_ENTRIES} were dropped.
+	 */
+	public boolean isTruncated() {
+		getEntries();
+		return truncated;
+	}
+
+	@Override
+	public String getKind() {
+		return "ssscm";
+	}
+
+	public Iterator<ShellScriptChangeLogEntry> iterator() {
+		return getEntries().iterator();
+	}
+
+	/**
+	 * Returns the first {@link #MAX_ENTRIES} entries of the changelog,
+	 * reading the file on the first call.
+	 */
+	private List<ShellScriptChangeLogEntry> getEntries() {
+		List<ShellScriptChangeLogEntry> entries = this.entries;
+		if(entries == null) {
+			List<ShellScriptChangeLogEntry> read = new ArrayList<ShellScriptChangeLogEntry>();
+			EntryIterator it = new EntryIterator();
+			try {
+				while(read.size() < MAX_ENTRIES && it.hasNext())
+					read.add(it.next());
+				truncated = it.hasNext();
+			} finally {
+				it.close();
+			}
+			entries = Collections.unmodifiableList(read);
+			this.entries = entries;
+		}
+		return entries;
+	}
+
+	private final class EntryIterator implements Iterator<ShellScriptChangeLogEntry> {
+		private BufferedReader reader;
+		private ShellScriptChangeLogEntry next;
+		private int lineNumber;
+
+		EntryIterator() {
+			if(changelogFile.isFile() && changelogFile.length() > 0) {
+				try {
+					reader = new BufferedReader(new InputStreamReader(new FileInputStream(changelogFile), ENCODING));
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to read " + changelogFile, e);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			while(next == null && reader != null) {
+				try {
+					String line = reader.readLine();
+					if(line == null) {
+						close();
+					} else {
+						lineNumber++;
+						next = parse(line.trim());
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to read " + changelogFile, e);
+					close();
+				}
+			}
+			return next != null;
+		}
+
+		public ShellScriptChangeLogEntry next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			ShellScriptChangeLogEntry entry = next;
+			next = null;
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private ShellScriptChangeLogEntry parse(String line) {
+			if(line.length() == 0)
+				return null;
+
+			ShellScriptChangeLogEntry entry;
+			if(line.startsWith("{")) {
+				try {
+					JSONObject json = JSONObject.fromObject(line);
+					List<String> paths = new ArrayList<String>();
+					JSONArray array = json.optJSONArray("paths");
+					if(array != null) {
+						for(int i = 0; i < array.size(); i++)
+							paths.add(array.getString(i));
+					}
+					entry = new ShellScriptChangeLogEntry(
+							json.optString("revision", null),
+							json.optString("author", null),
+							json.optLong("timestamp", -1),
+							json.optString("msg", ""),
+							paths);
+				} catch (JSONException e) {
+					LOGGER.log(Level.FINE, "Line " + lineNumber + " of " + changelogFile + " is not a JSON object", e);
+					entry = new ShellScriptChangeLogEntry(null, null, -1, line, new ArrayList<String>());
+				}
+			} else {
+				entry = new ShellScriptChangeLogEntry(null, null, -1, line, new ArrayList<String>());
+			}
+			entry.setParent(ShellScriptChangeLogSet.this);
+			return entry;
+		}
+
+		void close() {
+			if(reader == null)
+				return;
+			try {
+				reader.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close " + changelogFile, e);
+			}
+			reader = null;
+		}
+	}
+}
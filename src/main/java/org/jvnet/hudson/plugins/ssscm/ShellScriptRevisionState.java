@@ -0,0 +1,72 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.Serializable;
+import hudson.scm.SCMRevisionState;
+
+/**
+ * The revision a build was made from, as printed by the polling shell.
+ *
+ * <p>
+ * Stored on each build so that the next poll only has to compare the
+ * revision the polling shell prints now with the one recorded here.
+ */
+public class ShellScriptRevisionState extends SCMRevisionState implements Serializable {
+
+	/**
+	 * Default serial version.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The revision token printed by the polling shell.
+	 */
+	private final String revision;
+
+	/**
+	 * Creates the revision state.
+	 *
+	 * @param revision
+	 *      The revision token printed by the polling shell.
+	 */
+	public ShellScriptRevisionState(String revision) {
+		this.revision = revision;
+	}
+
+	/**
+	 * Returns the revision token printed by the polling shell.
+	 *
+	 * @return
+	 *      The revision token.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+
+	@Override
+	public String toString() {
+		return revision;
+	}
+}
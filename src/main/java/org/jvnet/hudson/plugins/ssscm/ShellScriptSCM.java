@@ -23,29 +23,65 @@
  */
 package org.jvnet.hudson.plugins.ssscm;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.Serializable;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.Hudson;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.PollingResult;
 import hudson.scm.SCMRevisionState;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
+import hudson.security.ACL;
 import hudson.tasks.Messages;
+import hudson.triggers.SCMTrigger;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
 
 /**
  * A class to utilize shell scripts as an SCM
@@ -76,6 +112,52 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	 */
 	private final String TEMP_FILE_EXT   = ".sh";
 	
+	/**
+	 * The exit code of the shell when the script to run cannot be found.
+	 */
+	private static final int SCRIPT_NOT_FOUND = 127;
+	
+	/**
+	 * The execution status of a shell command killed after its timeout.
+	 */
+	static final int TIMED_OUT = -2;
+	
+	/**
+	 * The environment variable naming the file the checkout shell may write
+	 * its changelog to.
+	 */
+	public static final String CHANGELOG_VARIABLE = "SSSCM_CHANGELOG";
+
+	/**
+	 * The environment variable holding the name of the checkout step a
+	 * checkout shell runs for.
+	 */
+	public static final String STEP_VARIABLE = "SSSCM_STEP";
+	
+	private static final Logger LOGGER = Logger.getLogger(ShellScriptSCM.class.getName());
+	
+	/**
+	 * Kills shell commands which have run longer than their timeout.
+	 */
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+	
+	/**
+	 * The delay in milliseconds before the first retry of a failed checkout
+	 * shell.  The delay doubles with every further retry.
+	 */
+	private static final long CHECKOUT_RETRY_DELAY = 2000;
+	
+	/**
+	 * The longest delay in milliseconds between retries of a failed checkout
+	 * shell.
+	 */
+	private static final long CHECKOUT_RETRY_MAX_DELAY = 60000;
+	
+	/**
+	 * Randomizes the delays between retries.
+	 */
+	private static final Random RETRY_JITTER = new Random();
+	
 	/**
 	 * The checkout shell.
 	 */
@@ -91,6 +173,125 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	 * default is false.
 	 */
 	private boolean useCheckoutForPolling;
+	
+	/**
+	 * Configuration option: Set to true if the polling shell prints a revision
+	 * token on stdout instead of signalling changes with its exit code.  The
+	 * default is false.
+	 */
+	private boolean pollForRevision;
+	
+	/**
+	 * Configuration option: Set to true to poll outside of the job's workspace,
+	 * on the controller or on a node matching {@link #pollingLabel}.  The
+	 * default is false.
+	 */
+	private boolean pollWithoutWorkspace;
+	
+	/**
+	 * The label expression of the nodes to poll on when polling without a
+	 * workspace, empty to poll on the controller.
+	 */
+	private String pollingLabel;
+	
+	/**
+	 * The key polls of this job share a concurrency limit with, for instance
+	 * the host they poll, or null if there is none.
+	 */
+	private String pollingConcurrencyKey;
+	
+	/**
+	 * The number of polls which may run at once for the concurrency key, 0
+	 * for no limit.
+	 */
+	private int pollingConcurrencyLimit;
+	
+	/**
+	 * The number of seconds after which the checkout shell is killed, 0 for
+	 * no timeout.
+	 */
+	private int checkoutTimeout;
+	
+	/**
+	 * Configuration option: The number of times a failed checkout shell is
+	 * run again before the build fails, 0 for none.
+	 */
+	private int checkoutRetries;
+	
+	/**
+	 * Configuration option: The exit codes of the checkout shell which are
+	 * retried, separated by spaces, null to retry any failure.
+	 */
+	private String checkoutRetryCodes;
+	
+	/**
+	 * The number of seconds after which the polling shell is killed, 0 for
+	 * no timeout.
+	 */
+	private int pollingTimeout;
+	
+	/**
+	 * Configuration option: Set to true to run the polling shell in a warm
+	 * shell kept running on the node instead of launching a new process for
+	 * each poll.  The default is false.
+	 */
+	private boolean useWarmShell;
+	
+	/**
+	 * Configuration option: Set to true to keep a manifest of the files in
+	 * the workspace between checkouts.  The default is false.
+	 */
+	private boolean useManifest;
+	
+	/**
+	 * Configuration option: The key commit notifications for this job
+	 * carry, null if the job is not notified.
+	 */
+	private String notifyKey;
+	
+	/**
+	 * Configuration option: The named checkout shells run concurrently
+	 * after the checkout shell, null if there are none.
+	 */
+	private List<CheckoutStep> checkoutSteps;
+	
+	/**
+	 * Configuration option: The number of checkout steps which may run at
+	 * once, 0 for no limit.
+	 */
+	private int checkoutParallelism;
+	
+	/**
+	 * Configuration option: The key of the node-local cache directory
+	 * shared with other jobs, null if the checkout uses no cache.
+	 */
+	private String cacheKey;
+	
+	/**
+	 * Configuration option: Set to true to pass shells to the interpreter
+	 * on its command line instead of writing them to a script file.  The
+	 * default is false.
+	 */
+	private boolean useInlineScript;
+	
+	/**
+	 * Configuration option: The longest interval in minutes polls of a quiet
+	 * upstream may stretch to, 0 to run the polling shell on every poll.
+	 */
+	private int adaptivePollingLimit;
+	
+	/**
+	 * Configuration option: The key polls of this job are answered for by
+	 * the batch polling shell, null if the job runs its own polling shell.
+	 */
+	private String batchPollingKey;
+	
+	/**
+	 * The launch templates of the checkout and polling shells, made whenever
+	 * the shells are set or the configuration is loaded.
+	 */
+	private transient volatile LaunchTemplate checkoutTemplate;
+	private transient volatile LaunchTemplate pollingTemplate;
 
 	/**
 	 * Creates the ShellScriptSCM.
@@ -104,6 +305,7 @@ public class ShellScriptSCM extends SCM implements Serializable{
 		this.checkoutShell = checkoutShell;
 		this.pollingShell  = pollingShell;
 		this.useCheckoutForPolling = false;
+		compileTemplates();
 	}
 	
 
@@ -120,11 +322,144 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	 *      Set to true to use the checkout shell for polling, false
 	 *      if the polling shell is to be used for polling.
 	 */
-	@DataBoundConstructor
 	public ShellScriptSCM(String checkoutShell, String pollingShell, Boolean useCheckoutForPolling) {
+		this(checkoutShell, pollingShell, useCheckoutForPolling, Boolean.FALSE, Boolean.FALSE, null, null, 0, 0, 0, Boolean.FALSE, Boolean.FALSE, null, null, 0, null, Boolean.FALSE, 0, null, 0, null);
+	}
+
+	/**
+	 *  Creates the ShellScriptSCM.
+	 *  
+	 * @param checkoutShell 
+	 *      The shell command used when a checkout is done. 
+	 *      
+	 * @param pollingShell 
+	 *      The shell command to use for polling.
+	 *      
+	 * @param useCheckoutForPolling 
+	 *      Set to true to use the checkout shell for polling, false
+	 *      if the polling shell is to be used for polling.
+	 *      
+	 * @param pollForRevision 
+	 *      Set to true if the polling shell prints a revision token, false
+	 *      if it signals changes with exit code '1'.
+	 *      
+	 * @param pollWithoutWorkspace 
+	 *      Set to true to poll in a scratch directory on the controller or a
+	 *      polling node instead of in the job's workspace.
+	 *      
+	 * @param pollingLabel 
+	 *      The label expression of the nodes to poll on when polling without
+	 *      a workspace, empty to poll on the controller.
+	 *      
+	 * @param pollingConcurrencyKey 
+	 *      The key polls of this job share a concurrency limit with, empty
+	 *      if there is none.
+	 *      
+	 * @param pollingConcurrencyLimit 
+	 *      The number of polls which may run at once for the concurrency
+	 *      key, 0 for no limit.
+	 *      
+	 * @param checkoutTimeout 
+	 *      The number of seconds after which the checkout shell is killed, 0
+	 *      for no timeout.
+	 *      
+	 * @param pollingTimeout 
+	 *      The number of seconds after which the polling shell is killed, 0
+	 *      for no timeout.
+	 *      
+	 * @param useWarmShell 
+	 *      Set to true to run the polling shell in a warm shell kept running
+	 *      on the node.
+	 *      
+	 * @param useManifest 
+	 *      Set to true to keep a manifest of the files in the workspace
+	 *      between checkouts.
+	 *      
+	 * @param notifyKey 
+	 *      The key commit notifications for this job carry, empty if the
+	 *      job is not notified.
+	 *      
+	 * @param checkoutSteps 
+	 *      The named checkout shells run concurrently after the checkout
+	 *      shell, null or empty if there are none.
+	 *      
+	 * @param checkoutParallelism 
+	 *      The number of checkout steps which may run at once, 0 for no
+	 *      limit.
+	 *      
+	 * @param cacheKey 
+	 *      The key of the node-local cache directory shared with other
+	 *      jobs, empty if the checkout uses no cache.
+	 *      
+	 * @param useInlineScript 
+	 *      Set to true to pass shells to the interpreter on its command line
+	 *      instead of writing them to a script file.
+	 *      
+	 * @param checkoutRetries 
+	 *      The number of times a failed checkout shell is run again before
+	 *      the build fails, 0 for none.
+	 *      
+	 * @param checkoutRetryCodes 
+	 *      The exit codes of the checkout shell which are retried, separated
+	 *      by spaces or commas, empty to retry any failure.
+	 *      
+	 * @param adaptivePollingLimit 
+	 *      The longest interval in minutes between polling shell runs of a
+	 *      quiet upstream, 0 to run the polling shell on every poll.
+	 *      
+	 * @param batchPollingKey 
+	 *      The key polls of this job are answered for by the batch polling
+	 *      shell, empty to run the polling shell of the job.
+	 */
+	@DataBoundConstructor
+	public ShellScriptSCM(String checkoutShell, String pollingShell, Boolean useCheckoutForPolling, Boolean pollForRevision,
+			Boolean pollWithoutWorkspace, String pollingLabel, String pollingConcurrencyKey, int pollingConcurrencyLimit,
+			int checkoutTimeout, int pollingTimeout, Boolean useWarmShell, Boolean useManifest, String notifyKey,
+			List<CheckoutStep> checkoutSteps, int checkoutParallelism, String cacheKey, Boolean useInlineScript,
+			int checkoutRetries, String checkoutRetryCodes, int adaptivePollingLimit,
+			String batchPollingKey) {
 		this.checkoutShell = checkoutShell;
 		this.pollingShell  = pollingShell;
 		this.useCheckoutForPolling = useCheckoutForPolling.booleanValue();		
+		this.pollForRevision = pollForRevision.booleanValue();
+		this.pollWithoutWorkspace = pollWithoutWorkspace.booleanValue();
+		this.pollingLabel = Util.fixEmptyAndTrim(pollingLabel);
+		this.pollingConcurrencyKey = Util.fixEmptyAndTrim(pollingConcurrencyKey);
+		this.pollingConcurrencyLimit = Math.max(0, pollingConcurrencyLimit);
+		this.checkoutTimeout = Math.max(0, checkoutTimeout);
+		this.pollingTimeout = Math.max(0, pollingTimeout);
+		this.useWarmShell = useWarmShell.booleanValue();
+		this.useManifest = useManifest.booleanValue();
+		this.notifyKey = Util.fixEmptyAndTrim(notifyKey);
+		this.checkoutSteps = checkoutSteps != null && !checkoutSteps.isEmpty() ? new ArrayList<CheckoutStep>(checkoutSteps) : null;
+		this.checkoutParallelism = Math.max(0, checkoutParallelism);
+		this.cacheKey = Util.fixEmptyAndTrim(cacheKey);
+		this.useInlineScript = useInlineScript.booleanValue();
+		this.checkoutRetries = Math.max(0, checkoutRetries);
+		this.checkoutRetryCodes = normalizeExitCodes(checkoutRetryCodes);
+		this.adaptivePollingLimit = Math.max(0, adaptivePollingLimit);
+		this.batchPollingKey = Util.fixEmptyAndTrim(batchPollingKey);
+		compileTemplates();
+	}
+
+	/**
+	 * Makes the launch templates of the shells after the configuration has
+	 * been loaded, since transient fields are not restored.
+	 * 
+	 * @return 
+	 *      This SCM.
+	 */
+	protected Object readResolve() {
+		compileTemplates();
+		return this;
+	}
+
+	/**
+	 * Makes the launch templates of the checkout and polling shells.
+	 */
+	private void compileTemplates() {
+		checkoutTemplate = LaunchTemplate.of(checkoutShell, SHELL);
+		pollingTemplate = LaunchTemplate.of(pollingShell, SHELL);
 	}
 
 	/**
@@ -147,6 +482,7 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	@Exported
 	public void setCheckoutShell(String checkoutShell) {
 		this.checkoutShell = checkoutShell;
+		compileTemplates();
 	}
 
 	/**
@@ -169,6 +505,7 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	@Exported
 	public void setPollingShell(String pollingShell) {
 		this.pollingShell = pollingShell;
+		compileTemplates();
 	}
 
 	/**
@@ -196,170 +533,1384 @@ public class ShellScriptSCM extends SCM implements Serializable{
 	}
 
 	/**
-	 * Checkout is performed by using the specified 'checkout' shell.
+	 * Get the state of the conditional for polling by revision token.
+	 * 
+	 * @return 
+	 *      True if the polling shell prints a revision token, false if it
+	 *      signals changes with exit code '1'.
 	 */
-	@Override
-	public boolean checkout(AbstractBuild<?,?> build, Launcher launcher,
-			FilePath workspace, BuildListener listener, File changelogFile)
-			throws IOException, InterruptedException {
-
-		this.execute(checkoutShell, launcher,workspace,listener);
-
-		return true;
+	@Exported
+	public boolean isPollForRevision() {
+		return pollForRevision;
 	}
 
 	/**
-	 * This method is not implemented.
+	 * Set the conditional for polling by revision token.
+	 * 
+	 * @param pollForRevision 
+	 *      Set to true if the polling shell prints a revision token, false
+	 *      if it signals changes with exit code '1'.
 	 */
-	@Override
-	public ChangeLogParser createChangeLogParser() {
-		// TODO Auto-generated method stub
-		return null;
+	@Exported
+	public void setPollForRevision(Boolean pollForRevision) {
+		this.pollForRevision = pollForRevision.booleanValue();
 	}
 
-	
 	/**
-	 * This method executes the polling shell in order to determine if there
-	 * are any changes.  If the polling shell exits with exit code '1' then 
-	 * this method will return true to indicate that a checkout must be done. 
-	 * Any other exit code will not trigger a checkout.
+	 * Get the state of the conditional for polling without a workspace.
+	 * 
+	 * @return 
+	 *      True if polling runs in a scratch directory on the controller or a
+	 *      polling node, false if it runs in the job's workspace.
 	 */
-	@Override
-	public boolean pollChanges(AbstractProject<?,?> project, Launcher launcher,
-			FilePath workspace, TaskListener listener) throws IOException,
-			InterruptedException {
-		int rc = 0;
-
-		if( useCheckoutForPolling ){
-			rc = this.execute(checkoutShell, launcher,workspace,listener);
-		} else {
-			rc = this.execute(pollingShell, launcher,workspace,listener);			
-		}
-		
-		// Only return true if the return code from the shell command is 1 
-		if(rc == 1 ){
-			return true;			
-		} else {
-			return false;
-		}
-		
+	@Exported
+	public boolean isPollWithoutWorkspace() {
+		return pollWithoutWorkspace;
 	}
 
 	/**
-	 * This method is not implemented.
+	 * Set the conditional for polling without a workspace.
+	 * 
+	 * @param pollWithoutWorkspace 
+	 *      Set to true to poll in a scratch directory on the controller or a
+	 *      polling node instead of in the job's workspace.
 	 */
-	@Override
-	public SCMRevisionState calcRevisionsFromBuild(AbstractBuild<?, ?> build,
-			Launcher launcher, TaskListener listener) throws IOException,
-			InterruptedException {
-		// TODO Auto-generated method stub
-		return null;
+	@Exported
+	public void setPollWithoutWorkspace(Boolean pollWithoutWorkspace) {
+		this.pollWithoutWorkspace = pollWithoutWorkspace.booleanValue();
 	}
 
-
 	/**
-	 * This method is not implemented.
+	 * Returns the label expression of the nodes to poll on when polling
+	 * without a workspace.
+	 * 
+	 * @return 
+	 *      The polling label, null to poll on the controller.
 	 */
-	@Override
-	protected PollingResult compareRemoteRevisionWith(
-			AbstractProject<?, ?> project, Launcher launcher,
-			FilePath workspace, TaskListener listener, SCMRevisionState baseline)
-			throws IOException, InterruptedException {
-		// TODO Auto-generated method stub
-		return null;
+	@Exported
+	public String getPollingLabel() {
+		return pollingLabel;
 	}
 
-
-	
-	/* (non-Javadoc)
-	 * @see hudson.scm.SCM#getDescriptor()
+	/**
+	 * Set the label expression of the nodes to poll on when polling without
+	 * a workspace.
+	 * 
+	 * @param pollingLabel 
+	 *      The polling label, empty to poll on the controller.
 	 */
-	@Override
-    public DescriptorImpl getDescriptor() {
-        return (DescriptorImpl)super.getDescriptor();
-    }
+	@Exported
+	public void setPollingLabel(String pollingLabel) {
+		this.pollingLabel = Util.fixEmptyAndTrim(pollingLabel);
+	}
 
 	/**
-	 * Helper method to execute a shell command.
+	 * Returns the key polls of this job share a concurrency limit with.
 	 * 
-	 * @param shellCmd 
-	 *      The shell command to be executed.
-	 *      
-	 * @param launcher 
-	 *      The process launcher.
-	 *      
-	 * @param workspace 
-	 *      The workspace where the shell command is going to be executed.
-	 *      
-	 * @param listener 
-	 *      The TaskListener
-	 *      
 	 * @return 
-	 *      The execution status of the shell command.
-	 *      
-	 * @throws IOException
-	 *      If there is an exception during the shell command execution.
-	 *      
-	 * @throws InterruptedException
-	 *      If there is an exception during the shell command execution.
+	 *      The concurrency key, null if there is none.
 	 */
-	private int execute(String shellCmd, Launcher launcher, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
-		FilePath script=null;
-		try {
-			try {
-				script = workspace.createTextTempFile(TEMP_FILE_NAME, TEMP_FILE_EXT, shellCmd, false);
-			} catch (IOException e) {
-				Util.displayIOException(e,listener);
-				e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_UnableToProduceScript()));
-				return -1;
-			}
+	@Exported
+	public String getPollingConcurrencyKey() {
+		return pollingConcurrencyKey;
+	}
 
-			int r;
-			try {
-				r = launcher.launch().cmds(buildCommandLine(shellCmd, script)).envs(System.getenv()).stdout(listener).pwd(workspace).join();
-			} catch (IOException e) {
-				Util.displayIOException(e,listener);
-				e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_CommandFailed()));
-				r = -1;
-			}
-			return r;
-		} finally {
-			try {
-				if(script!=null)
-					script.delete();
-			} catch (IOException e) {
-				Util.displayIOException(e,listener);
-				e.printStackTrace( listener.fatalError(Messages.CommandInterpreter_UnableToDelete(script)) );
-			}
-		}
+	/**
+	 * Set the key polls of this job share a concurrency limit with.
+	 * 
+	 * @param pollingConcurrencyKey 
+	 *      The concurrency key, empty if there is none.
+	 */
+	@Exported
+	public void setPollingConcurrencyKey(String pollingConcurrencyKey) {
+		this.pollingConcurrencyKey = Util.fixEmptyAndTrim(pollingConcurrencyKey);
+	}
 
+	/**
+	 * Returns the number of polls which may run at once for the concurrency key.
+	 * 
+	 * @return 
+	 *      The concurrency limit, 0 for no limit.
+	 */
+	@Exported
+	public int getPollingConcurrencyLimit() {
+		return pollingConcurrencyLimit;
 	}
-	
+
 	/**
+	 * Set the number of polls which may run at once for the concurrency key.
 	 * 
-	 * @param shellCmd
-	 * @param script
-	 * @return
+	 * @param pollingConcurrencyLimit 
+	 *      The concurrency limit, 0 for no limit.
 	 */
-    private String[] buildCommandLine(String shellCmd, FilePath script) {
-        if(shellCmd.startsWith("#!")) {
-            // interpreter override
-            int end = shellCmd.indexOf('\n');
-            if(end<0)   end=shellCmd.length();
-            List<String> args = new ArrayList<String>();
-            args.addAll(Arrays.asList(Util.tokenize(shellCmd.substring(0,end).trim())));
-            args.add(script.getRemote());
-            args.set(0,args.get(0).substring(2));   // trim off "#!"
-            return args.toArray(new String[args.size()]);
-        } else
-            return new String[] { SHELL,"-xe",script.getRemote()};
-    }
+	@Exported
+	public void setPollingConcurrencyLimit(int pollingConcurrencyLimit) {
+		this.pollingConcurrencyLimit = Math.max(0, pollingConcurrencyLimit);
+	}
 
-	
 	/**
-     * Descriptor for {@link ShellScriptSCM}. Used as a singleton.
-     * The class is marked as public so that it can be accessed from views.
-     *
+	 * Returns the number of seconds after which the checkout shell is killed.
+	 * 
+	 * @return 
+	 *      The checkout timeout, 0 for no timeout.
+	 */
+	@Exported
+	public int getCheckoutTimeout() {
+		return checkoutTimeout;
+	}
+
+	/**
+	 * Set the number of seconds after which the checkout shell is killed.
+	 * 
+	 * @param checkoutTimeout 
+	 *      The checkout timeout, 0 for no timeout.
+	 */
+	@Exported
+	public void setCheckoutTimeout(int checkoutTimeout) {
+		this.checkoutTimeout = Math.max(0, checkoutTimeout);
+	}
+
+	/**
+	 * Returns the number of times a failed checkout shell is run again.
+	 * 
+	 * @return 
+	 *      The number of retries, 0 for none.
+	 */
+	@Exported
+	public int getCheckoutRetries() {
+		return checkoutRetries;
+	}
+
+	/**
+	 * Set the number of times a failed checkout shell is run again before
+	 * the build fails.
+	 * 
+	 * @param checkoutRetries 
+	 *      The number of retries, 0 for none.
+	 */
+	@Exported
+	public void setCheckoutRetries(int checkoutRetries) {
+		this.checkoutRetries = Math.max(0, checkoutRetries);
+	}
+
+	/**
+	 * Returns the exit codes of the checkout shell which are retried.
+	 * 
+	 * @return 
+	 *      The exit codes separated by spaces, null if any failure is
+	 *      retried.
+	 */
+	@Exported
+	public String getCheckoutRetryCodes() {
+		return checkoutRetryCodes;
+	}
+
+	/**
+	 * Set the exit codes of the checkout shell which are retried.  Entries
+	 * which are not numbers are dropped.
+	 * 
+	 * @param checkoutRetryCodes 
+	 *      The exit codes separated by spaces or commas, empty to retry any
+	 *      failure.
+	 */
+	@Exported
+	public void setCheckoutRetryCodes(String checkoutRetryCodes) {
+		this.checkoutRetryCodes = normalizeExitCodes(checkoutRetryCodes);
+	}
+
+	/**
+	 * Returns the number of seconds after which the polling shell is killed.
+	 * 
+	 * @return 
+	 *      The polling timeout, 0 for no timeout.
+	 */
+	@Exported
+	public int getPollingTimeout() {
+		return pollingTimeout;
+	}
+
+	/**
+	 * Set the number of seconds after which the polling shell is killed.
+	 * 
+	 * @param pollingTimeout 
+	 *      The polling timeout, 0 for no timeout.
+	 */
+	@Exported
+	public void setPollingTimeout(int pollingTimeout) {
+		this.pollingTimeout = Math.max(0, pollingTimeout);
+	}
+
+	/**
+	 * Get the state of the conditional for polling in a warm shell.
+	 * 
+	 * @return 
+	 *      True if the polling shell runs in a warm shell kept running on the
+	 *      node, false if a new process is launched for each poll.
+	 */
+	@Exported
+	public boolean isUseWarmShell() {
+		return useWarmShell;
+	}
+
+	/**
+	 * Set the conditional for polling in a warm shell.
+	 * 
+	 * @param useWarmShell 
+	 *      Set to true to run the polling shell in a warm shell kept running
+	 *      on the node.
+	 */
+	@Exported
+	public void setUseWarmShell(Boolean useWarmShell) {
+		this.useWarmShell = useWarmShell.booleanValue();
+	}
+
+	/**
+	 * Returns the conditional for keeping a workspace manifest.
+	 * 
+	 * @return 
+	 *      True if a manifest of the files in the workspace is kept between
+	 *      checkouts.
+	 */
+	@Exported
+	public boolean isUseManifest() {
+		return useManifest;
+	}
+
+	/**
+	 * Set the conditional for keeping a workspace manifest.
+	 * 
+	 * @param useManifest 
+	 *      Set to true to keep a manifest of the files in the workspace
+	 *      between checkouts.
+	 */
+	@Exported
+	public void setUseManifest(Boolean useManifest) {
+		this.useManifest = useManifest.booleanValue();
+	}
+
+	/**
+	 * Returns the key commit notifications for this job carry.
+	 * 
+	 * @return 
+	 *      The notification key, null if the job is not notified.
+	 */
+	@Exported
+	public String getNotifyKey() {
+		return notifyKey;
+	}
+
+	/**
+	 * Set the key commit notifications for this job carry.
+	 * 
+	 * @param notifyKey 
+	 *      The notification key, empty if the job is not notified.
+	 */
+	@Exported
+	public void setNotifyKey(String notifyKey) {
+		this.notifyKey = Util.fixEmptyAndTrim(notifyKey);
+	}
+
+	/**
+	 * Returns the named checkout shells run concurrently after the checkout
+	 * shell.
+	 * 
+	 * @return 
+	 *      The checkout steps, empty if there are none.
+	 */
+	@Exported
+	public List<CheckoutStep> getCheckoutSteps() {
+		return checkoutSteps != null ? Collections.unmodifiableList(checkoutSteps) : Collections.<CheckoutStep>emptyList();
+	}
+
+	/**
+	 * Set the named checkout shells run concurrently after the checkout
+	 * shell.
+	 * 
+	 * @param checkoutSteps 
+	 *      The checkout steps, null or empty if there are none.
+	 */
+	@Exported
+	public void setCheckoutSteps(List<CheckoutStep> checkoutSteps) {
+		this.checkoutSteps = checkoutSteps != null && !checkoutSteps.isEmpty() ? new ArrayList<CheckoutStep>(checkoutSteps) : null;
+	}
+
+	/**
+	 * Returns the number of checkout steps which may run at once.
+	 * 
+	 * @return 
+	 *      The parallelism of the checkout steps, 0 for no limit.
+	 */
+	@Exported
+	public int getCheckoutParallelism() {
+		return checkoutParallelism;
+	}
+
+	/**
+	 * Set the number of checkout steps which may run at once.
+	 * 
+	 * @param checkoutParallelism 
+	 *      The parallelism of the checkout steps, 0 for no limit.
+	 */
+	@Exported
+	public void setCheckoutParallelism(int checkoutParallelism) {
+		this.checkoutParallelism = Math.max(0, checkoutParallelism);
+	}
+
+	/**
+	 * Returns the key of the node-local cache directory of the checkout.
+	 * 
+	 * @return 
+	 *      The cache key, null if the checkout uses no cache.
+	 */
+	@Exported
+	public String getCacheKey() {
+		return cacheKey;
+	}
+
+	/**
+	 * Set the key of the node-local cache directory of the checkout.
+	 * 
+	 * @param cacheKey 
+	 *      The cache key, empty if the checkout uses no cache.
+	 */
+	@Exported
+	public void setCacheKey(String cacheKey) {
+		this.cacheKey = Util.fixEmptyAndTrim(cacheKey);
+	}
+
+	/**
+	 * Returns the conditional for passing shells on the command line.
+	 * 
+	 * @return 
+	 *      True if shells are passed to the interpreter on its command line,
+	 *      false if they are written to a script file.
+	 */
+	@Exported
+	public boolean isUseInlineScript() {
+		return useInlineScript;
+	}
+
+	/**
+	 * Set the conditional for passing shells on the command line.
+	 * 
+	 * @param useInlineScript 
+	 *      Set to true to pass shells to the interpreter on its command line
+	 *      instead of writing them to a script file.
+	 */
+	@Exported
+	public void setUseInlineScript(Boolean useInlineScript) {
+		this.useInlineScript = useInlineScript.booleanValue();
+	}
+
+	/**
+	 * Returns the longest interval between polling shell runs of a quiet
+	 * upstream.
+	 * 
+	 * @return 
+	 *      The limit in minutes, 0 if the polling shell runs on every poll.
+	 */
+	@Exported
+	public int getAdaptivePollingLimit() {
+		return adaptivePollingLimit;
+	}
+
+	/**
+	 * Set the longest interval between polling shell runs of a quiet
+	 * upstream.
+	 * 
+	 * @param adaptivePollingLimit 
+	 *      The limit in minutes, 0 to run the polling shell on every poll.
+	 */
+	@Exported
+	public void setAdaptivePollingLimit(int adaptivePollingLimit) {
+		this.adaptivePollingLimit = Math.max(0, adaptivePollingLimit);
+	}
+
+	/**
+	 * Returns the key polls of this job are answered for by the batch
+	 * polling shell.
+	 * 
+	 * @return 
+	 *      The batch polling key, null if the job runs its own polling shell.
+	 */
+	@Exported
+	public String getBatchPollingKey() {
+		return batchPollingKey;
+	}
+
+	/**
+	 * Set the key polls of this job are answered for by the batch polling
+	 * shell.
+	 * 
+	 * @param batchPollingKey 
+	 *      The batch polling key, empty to run the polling shell of the job.
+	 */
+	@Exported
+	public void setBatchPollingKey(String batchPollingKey) {
+		this.batchPollingKey = Util.fixEmptyAndTrim(batchPollingKey);
+	}
+
+	/**
+	 * Returns true if polls of this job are answered for by the batch
+	 * polling shell, see {@link BatchPoll}.
+	 */
+	private boolean isBatchPolled() {
+		return batchPollingKey != null && getDescriptor().getBatchPollingShell() != null;
+	}
+
+	/**
+	 * Polling needs the job's workspace unless polling without a workspace
+	 * was requested or the batch polling shell answers for the job.
+	 */
+	@Override
+	public boolean requiresWorkspaceForPolling() {
+		return !pollWithoutWorkspace && !isBatchPolled();
+	}
+
+	/**
+	 * Returns the shell used for polling operations.
+	 * 
+	 * @return 
+	 *      The checkout shell if it is to be used for polling, otherwise
+	 *      the polling shell.
+	 */
+	private String getEffectivePollingShell() {
+		return useCheckoutForPolling ? checkoutShell : pollingShell;
+	}
+
+	/**
+	 * Checkout is performed by using the specified 'checkout' shell.  The
+	 * checkout shell may write the changes it checked out to the file named
+	 * by <tt>$SSSCM_CHANGELOG</tt>, see {@link ShellScriptChangeLogSet} for
+	 * the format.  The build fails if the checkout shell fails, after the
+	 * configured retries, see {@link #runCheckoutShell}.  When builds record
+	 * their revision, it is recorded before the checkout shell runs, see
+	 * {@link #calcRevisionsFromBuild}.
+	 * 
+	 * <p>
+	 * With a cache key, the node-local cache directory of the key is passed
+	 * in <tt>$SSSCM_CACHE_DIR</tt>, see {@link MirrorCache}.
+	 * 
+	 * <p>
+	 * The checkout steps then run concurrently, each in its own directory,
+	 * see {@link #runCheckoutSteps}.
+	 * 
+	 * <p>
+	 * When keeping a workspace manifest, the manifest of the previous
+	 * checkout is passed in <tt>$SSSCM_MANIFEST</tt>, see
+	 * {@link WorkspaceManifest}.  Afterwards the files the checkout shell
+	 * changed are fingerprinted and, if it wrote no changelog, recorded as
+	 * the changelog.
+	 */
+	@Override
+	public boolean checkout(AbstractBuild<?,?> build, Launcher launcher,
+			FilePath workspace, BuildListener listener, File changelogFile)
+			throws IOException, InterruptedException {
+
+		FilePath changelog = ScriptCache.of(workspace).getDirectory(workspace).createTempFile("changelog", ".txt");
+		FilePath cache = null;
+		try {
+			Map<String,String> env = ScriptEnvironment.forBuild(build, workspace, listener);
+			env.put(CHANGELOG_VARIABLE, changelog.getRemote());
+			cache = this.acquireCache(build, listener);
+			if( cache != null ){
+				env.put(MirrorCache.VARIABLE, cache.getRemote());
+			}
+			FilePath manifest = useManifest ? WorkspaceManifest.of(workspace) : null;
+			if( manifest != null && manifest.exists() ){
+				env.put(WorkspaceManifest.VARIABLE, manifest.getRemote());
+			}
+
+			// The revision is recorded before the checkout, so that changes
+			// made upstream while checking out are found by the next poll.
+			if( recordsRevision() ){
+				String revision = this.revisionOf(build, launcher, workspace, listener);
+				if( revision != null ){
+					build.addAction(new ShellScriptRevisionState(revision));
+				}
+			}
+
+			// with checkout steps, the checkout shell is optional
+			if( checkoutSteps == null || Util.fixEmptyAndTrim(checkoutShell) != null ){
+				this.runCheckoutShell(build, launcher, workspace, listener, env, changelog);
+			}
+			if( checkoutSteps != null ){
+				this.runCheckoutSteps(build, launcher, workspace, listener, env, changelog);
+			}
+
+			if( manifest != null ){
+				WorkspaceManifest.Delta delta = workspace.act(new WorkspaceManifest.Update(manifest));
+				listener.getLogger().println("Workspace manifest: " + delta + ", " + delta.hashed + " of " + delta.files + " files read");
+				// the first manifest has nothing to compare with
+				if( !delta.initial && !delta.isEmpty() ){
+					if( changelog.length() == 0 ){
+						delta.writeChangeLog(changelog);
+					}
+					delta.recordFingerprints(build);
+				}
+			}
+
+			changelog.copyTo(new FilePath(changelogFile));
+		} finally {
+			changelog.delete();
+			if( cache != null ){
+				List<String> evicted = MirrorCache.release(cache, getDescriptor().getMirrorCacheSize() * 1024L * 1024L);
+				if( !evicted.isEmpty() ){
+					listener.getLogger().println("Evicted the least recently used caches " + Util.join(evicted, ", "));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Helper method to run the checkout shell, running it again after a
+	 * growing, randomized delay as long as it fails with a retried exit code
+	 * and retries are left.  A timed out checkout shell is not retried.
+	 * 
+	 * @param env 
+	 *      The environment variables of the checkout shell.
+	 *      
+	 * @param changelog 
+	 *      The changelog of the checkout shell, emptied before each retry.
+	 *      
+	 * @throws AbortException 
+	 *      If the checkout shell timed out or failed.
+	 */
+	private void runCheckoutShell(AbstractBuild<?,?> build, Launcher launcher, FilePath workspace, BuildListener listener,
+			Map<String,String> env, FilePath changelog) throws IOException, InterruptedException {
+		String job = build.getProject().getFullName();
+		for( int attempt = 0; ; attempt++ ){
+			int rc = this.execute(checkoutShell, launcher, workspace, listener, null, checkoutTimeout, env,
+					job, ShellMetrics.CHECKOUT);
+			if( rc == 0 ){
+				return;
+			}
+			if( rc == TIMED_OUT ){
+				throw new AbortException("Checkout shell timed out after " + checkoutTimeout + " seconds");
+			}
+			if( attempt >= checkoutRetries || !isRetried(rc) ){
+				throw new AbortException("Checkout shell failed with exit code " + rc);
+			}
+			long delay = retryDelay(attempt);
+			listener.getLogger().println("Checkout shell failed with exit code " + rc + ", retry " + (attempt + 1)
+					+ " of " + checkoutRetries + " in " + delay + " ms");
+			Thread.sleep(delay);
+			// the retry records the changes again
+			changelog.write("", null);
+		}
+	}
+
+	/**
+	 * Returns true if a checkout shell failing with the given exit code is
+	 * retried.
+	 */
+	private boolean isRetried(int rc) {
+		if( checkoutRetryCodes == null ){
+			return true;
+		}
+		for( String code : checkoutRetryCodes.split(" ") ){
+			if( Integer.parseInt(code) == rc ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the delay before a retry of the checkout shell, which doubles
+	 * with every retry up to a limit.  A random part of up to half the delay
+	 * keeps jobs which failed together from retrying together.
+	 * 
+	 * @param attempt 
+	 *      The number of retries made so far.
+	 *      
+	 * @return 
+	 *      The delay in milliseconds.
+	 */
+	static long retryDelay(int attempt) {
+		long delay = Math.min(CHECKOUT_RETRY_MAX_DELAY, CHECKOUT_RETRY_DELAY << Math.min(attempt, 16));
+		synchronized(RETRY_JITTER) {
+			return delay - (long) (RETRY_JITTER.nextDouble() * delay / 2);
+		}
+	}
+
+	/**
+	 * Returns the given exit codes separated by single spaces, dropping the
+	 * entries which are not numbers.
+	 * 
+	 * @param codes 
+	 *      The exit codes separated by spaces or commas, or null.
+	 *      
+	 * @return 
+	 *      The exit codes, or null if there are none.
+	 */
+	private static String normalizeExitCodes(String codes) {
+		if( codes == null ){
+			return null;
+		}
+		StringBuilder buf = new StringBuilder();
+		for( String code : codes.split("[\\s,]+") ){
+			try {
+				int rc = Integer.parseInt(code);
+				if( buf.length() > 0 ){
+					buf.append(' ');
+				}
+				buf.append(rc);
+			} catch (NumberFormatException e) {
+				// not an exit code
+			}
+		}
+		return Util.fixEmpty(buf.toString());
+	}
+
+	/**
+	 * Helper method to lock the node-local cache directory of the checkout.
+	 * 
+	 * @return 
+	 *      The cache directory, null if the checkout uses no cache.
+	 */
+	private FilePath acquireCache(AbstractBuild<?,?> build, TaskListener listener) throws IOException, InterruptedException {
+		if( cacheKey == null ){
+			return null;
+		}
+		Node node = build.getBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if( root == null ){
+			throw new AbortException("The node of the build is offline");
+		}
+		FilePath cache = MirrorCache.acquire(root, cacheKey);
+		listener.getLogger().println("Using the cache " + cacheKey + " in " + cache.getRemote());
+		return cache;
+	}
+
+	/**
+	 * Helper method to run the checkout steps concurrently, each in its own
+	 * directory of the workspace and with its own changelog, which is
+	 * appended to the changelog of the checkout shell afterwards.  The
+	 * output of each step is prefixed with its name.
+	 * 
+	 * @param env 
+	 *      The environment variables of the checkout shell.
+	 *      
+	 * @param changelog 
+	 *      The changelog of the checkout shell.
+	 *      
+	 * @throws AbortException 
+	 *      If any of the steps failed, after all of them finished, or if
+	 *      the steps are not valid, see {@link CheckoutStep#validate}.
+	 */
+	private void runCheckoutSteps(AbstractBuild<?,?> build, final Launcher launcher, FilePath workspace,
+			final BuildListener listener, Map<String,String> env, FilePath changelog) throws IOException, InterruptedException {
+		CheckoutStep.validate(checkoutSteps);
+		final String job = build.getProject().getFullName();
+		int threads = checkoutSteps.size();
+		if( checkoutParallelism > 0 ){
+			threads = Math.min(threads, checkoutParallelism);
+		}
+		listener.getLogger().println("Running " + checkoutSteps.size() + " checkout steps, " + threads + " at a time");
+
+		FilePath tmp = ScriptCache.of(workspace).getDirectory(workspace);
+		List<FilePath> changelogs = new ArrayList<FilePath>();
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+		try {
+			for( final CheckoutStep step : checkoutSteps ){
+				final FilePath dir = workspace.child(step.getDirectory());
+				FilePath stepChangelog = tmp.createTempFile("changelog", ".txt");
+				changelogs.add(stepChangelog);
+				final Map<String,String> stepEnv = new HashMap<String,String>(env);
+				stepEnv.put(CHANGELOG_VARIABLE, stepChangelog.getRemote());
+				stepEnv.put(STEP_VARIABLE, step.getName());
+
+				results.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws IOException, InterruptedException {
+						StreamTaskListener stepListener = new StreamTaskListener(
+								new PrefixedOutputStream(listener.getLogger(), "[" + step.getName() + "] "));
+						long start = System.currentTimeMillis();
+						dir.mkdirs();
+						int rc = execute(step.getShell(), launcher, dir, stepListener, null, checkoutTimeout, stepEnv,
+								job, ShellMetrics.CHECKOUT);
+						stepListener.getLogger().println((rc == TIMED_OUT ? "Timed out" : "Exit code " + rc) + " after "
+								+ Util.getTimeSpanString(System.currentTimeMillis() - start));
+						stepListener.getLogger().flush();
+						return rc;
+					}
+				}));
+			}
+
+			List<String> failed = new ArrayList<String>();
+			StringBuilder log = new StringBuilder(changelog.readToString());
+			for( int i = 0; i < checkoutSteps.size(); i++ ){
+				String name = checkoutSteps.get(i).getName();
+				int rc;
+				try {
+					rc = results.get(i).get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace(listener.error("Checkout step " + name + " failed"));
+					rc = -1;
+				}
+				if( rc != 0 ){
+					failed.add(rc == TIMED_OUT ? name + " (timed out)" : name + " (exit code " + rc + ")");
+				}
+				log.append(changelogs.get(i).readToString());
+			}
+			changelog.write(log.toString(), "UTF-8");
+
+			if( !failed.isEmpty() ){
+				throw new AbortException("Checkout steps failed: " + Util.join(failed, ", "));
+			}
+		} finally {
+			// interrupts the steps still running when the build is aborted
+			pool.shutdownNow();
+			for( FilePath f : changelogs ){
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the parser of the changelog written by the checkout shell.
+	 */
+	@Override
+	public ChangeLogParser createChangeLogParser() {
+		return new ShellScriptChangeLogParser();
+	}
+
+	
+	/**
+	 * This method executes the polling shell in order to determine if there
+	 * are any changes.  If the polling shell exits with exit code '1' then 
+	 * this method will return true to indicate that a checkout must be done. 
+	 * Exit codes of failed shells, that is negative ones, 126, 127 and
+	 * those of shells killed by a signal, fail the poll.  Any other exit
+	 * code will not trigger a checkout.  A polling shell may instead write
+	 * its result to <tt>$SSSCM_POLL_RESULT</tt>, see {@link PollingReport}.
+	 */
+	@Override
+	public boolean pollChanges(AbstractProject<?,?> project, Launcher launcher,
+			FilePath workspace, TaskListener listener) throws IOException,
+			InterruptedException {
+		return this.pollShell(project, launcher, workspace, listener, SCMRevisionState.NONE, null).hasChanges();
+	}
+
+	/**
+	 * When polling by revision token or when the polling shell reports its
+	 * result to <tt>$SSSCM_POLL_RESULT</tt>, the revision recorded by
+	 * {@link #checkout} before the checkout shell ran is the baseline for
+	 * the next poll.  If none could be recorded then, this method runs the
+	 * polling shell in the workspace of the build which has just checked
+	 * out.  Otherwise there is no baseline.  Jobs answered for by the batch
+	 * polling shell record the revision it last printed for their key.
+	 */
+	@Override
+	public SCMRevisionState calcRevisionsFromBuild(AbstractBuild<?, ?> build,
+			Launcher launcher, TaskListener listener) throws IOException,
+			InterruptedException {
+		ShellScriptRevisionState recorded = build.getAction(ShellScriptRevisionState.class);
+		if( recorded != null ){
+			return recorded;
+		}
+
+		FilePath workspace = build.getWorkspace();
+		if( workspace == null || !recordsRevision() ){
+			return SCMRevisionState.NONE;
+		}
+		String revision = this.revisionOf(build, launcher, workspace, listener);
+		return revision != null ? new ShellScriptRevisionState(revision) : SCMRevisionState.NONE;
+	}
+
+	/**
+	 * Returns true if builds record the revision they were made from.
+	 */
+	private boolean recordsRevision() {
+		return isBatchPolled() || pollForRevision || PollingReport.isUsedBy(getEffectivePollingShell());
+	}
+
+	/**
+	 * Helper method to run the polling shell for the revision of a build.
+	 * 
+	 * @return 
+	 *      The revision, null if the polling shell or the batch polling shell
+	 *      failed or reported none.
+	 */
+	private String revisionOf(AbstractBuild<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener)
+			throws IOException, InterruptedException {
+		if( isBatchPolled() ){
+			// a revision older than the checkout at worst builds once more
+			try {
+				return BatchPoll.getRevision(batchPollingKey, getDescriptor(), SHELL, listener, false);
+			} catch (AbortException e) {
+				listener.error(e.getMessage() + ", no revision available");
+				return null;
+			}
+		}
+
+		Map<String,String> env = ScriptEnvironment.forBuild(build, workspace, listener);
+		PollingCache.Result result = this.runPollingShell(build.getProject().getFullName(), launcher, workspace, listener, env,
+				pollForRevision, false, false, null);
+		if( result.exitCode != 0 ){
+			listener.error("Polling shell exited with code " + result.exitCode + ", no revision available");
+			return null;
+		}
+
+		String revision = this.getRevision(result);
+		if( revision == null && pollForRevision ){
+			listener.error("Polling shell did not print a revision");
+		}
+		return revision;
+	}
+
+
+	/**
+	 * This method runs the polling shell, see {@link #pollChanges}.  When
+	 * polling by revision token, the token it prints is compared with the
+	 * one recorded for the last build.  When polling without a workspace the
+	 * polling shell runs in a scratch directory on the controller or on the
+	 * least loaded polling node, see {@link PollingNodes}.  Jobs with a batch
+	 * polling key compare the revision the batch polling shell prints for
+	 * their key instead, see {@link BatchPoll}.
+	 */
+	@Override
+	protected PollingResult compareRemoteRevisionWith(
+			AbstractProject<?, ?> project, Launcher launcher,
+			FilePath workspace, TaskListener listener, SCMRevisionState baseline)
+			throws IOException, InterruptedException {
+		if( pollWithoutWorkspace && !isBatchPolled() ){
+			PollingNodes.Lease lease = PollingNodes.select(pollingLabel);
+			try {
+				Node node = lease.getNode();
+				workspace = PollingNodes.scratchDir(node, project);
+				launcher = node.createLauncher(listener);
+				return this.pollShell(project, launcher, workspace, listener, baseline, lease);
+			} finally {
+				// drops a poll which did not run the polling shell
+				lease.release();
+			}
+		}
+
+		return this.pollShell(project, launcher, workspace, listener, baseline, null);
+	}
+
+	/**
+	 * Helper method to run the polling shell for a poll and turn its exit
+	 * code, its report or the revision it prints into a polling result.
+	 * When the polling log is limited, the output of a poll which neither
+	 * fails nor finds changes is cut down to its head and tail.  With
+	 * adaptive polling, polls of a quiet upstream skip the polling shell and
+	 * find no changes, see {@link AdaptivePolling}.
+	 * 
+	 * @param baseline 
+	 *      The revision recorded for the last build.
+	 *      
+	 * @param lease 
+	 *      The lease of the polling node the workspace is a scratch directory
+	 *      on, null when polling in the workspace of the job.
+	 *      
+	 * @return 
+	 *      The polling result.
+	 *      
+	 * @throws AbortException 
+	 *      If the polling shell failed.
+	 */
+	private PollingResult pollShell(AbstractProject<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener,
+			SCMRevisionState baseline, PollingNodes.Lease lease) throws IOException, InterruptedException {
+		if( adaptivePollingLimit > 0 ){
+			AdaptivePolling.History history = AdaptivePolling.of(project.getFullName());
+			long delay = history.getDelay(adaptivePollingLimit * 60000L);
+			if( delay > 0 ){
+				listener.getLogger().println("No changes for " + Util.getTimeSpanString(history.getQuietTime())
+						+ ", skipping the polling shell for " + Util.getTimeSpanString(delay));
+				// keep the baseline, no changes means no new remote revision
+				return new PollingResult(baseline, baseline, PollingResult.Change.NONE);
+			}
+		}
+
+		int limit = getDescriptor().getPollingLogLimit() * 1024;
+		if( limit <= 0 ){
+			return this.runPoll(project, launcher, workspace, listener, baseline, lease);
+		}
+
+		// Capture the output of the poll and log all of it only when the
+		// poll fails or finds changes.
+		PollingLog log = new PollingLog(limit);
+		StreamTaskListener captured = new StreamTaskListener(log);
+		boolean complete = true;
+		try {
+			PollingResult result = this.runPoll(project, launcher, workspace, captured, baseline, lease);
+			complete = result.hasChanges();
+			return result;
+		} finally {
+			captured.getLogger().flush();
+			log.writeTo(listener.getLogger(), complete);
+		}
+	}
+
+	/**
+	 * Helper method to run the polling shell for a poll, see
+	 * {@link #pollShell}.
+	 */
+	private PollingResult runPoll(AbstractProject<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener,
+			SCMRevisionState baseline, PollingNodes.Lease lease) throws IOException, InterruptedException {
+		// a commit notification asks for a fresh result
+		boolean forced = PollingCache.takeForced(project.getFullName());
+		if( forced ){
+			listener.getLogger().println("Notified of a commit, not reusing earlier polling results");
+		}
+
+		if( isBatchPolled() ){
+			String revision = BatchPoll.getRevision(batchPollingKey, getDescriptor(), SHELL, listener, forced);
+			PollingResult.Change change = this.compareRevision(baseline, revision, listener);
+			this.recordPoll(project, change);
+			return new PollingResult(baseline, new ShellScriptRevisionState(revision), change);
+		}
+
+		Map<String,String> env = ScriptEnvironment.forPoll(project, workspace);
+		PollingCache.Result result = this.runPollingShell(project.getFullName(), launcher, workspace, listener, env,
+				pollForRevision, true, forced, lease);
+		PollingReport report = PollingReport.parse(result.report);
+		int rc = result.exitCode;
+
+		if( report != null && report.getReason() != null ){
+			listener.getLogger().println("Polling shell reports: " + report.getReason());
+		}
+		// Only exit code 0 is a success when the result is reported otherwise
+		boolean failed = (report != null || pollForRevision) ? rc != 0 : (rc < 0 || rc >= 126);
+		if( failed ){
+			throw new AbortException("Polling shell failed with exit code " + rc);
+		}
+
+		String revision = this.getRevision(result);
+		if( revision == null && pollForRevision ){
+			throw new AbortException("Polling shell did not print a revision");
+		}
+		SCMRevisionState remote = revision != null ? new ShellScriptRevisionState(revision) : baseline;
+
+		PollingResult.Change change;
+		if( report != null && report.getChange() != null ){
+			change = report.getChange();
+		} else if( revision != null ){
+			change = this.compareRevision(baseline, revision, listener);
+		} else {
+			// Only a return code of 1 from the shell command is a change
+			change = rc == 1 ? PollingResult.Change.SIGNIFICANT : PollingResult.Change.NONE;
+		}
+		this.recordPoll(project, change);
+
+		if( report != null && report.getQuietPeriod() >= 0
+				&& (change == PollingResult.Change.SIGNIFICANT || change == PollingResult.Change.INCOMPARABLE) ){
+			// Schedule the build here to honour the quiet period, the new
+			// baseline keeps the next poll from scheduling it again.
+			listener.getLogger().println("Scheduling a build with a quiet period of " + report.getQuietPeriod() + " seconds");
+			project.scheduleBuild(report.getQuietPeriod(), new SCMTrigger.SCMTriggerCause());
+			return new PollingResult(baseline, remote, PollingResult.Change.NONE);
+		}
+		return new PollingResult(baseline, remote, change);
+	}
+
+	/**
+	 * Records the outcome of a polling shell run for adaptive polling.
+	 */
+	private void recordPoll(AbstractProject<?,?> project, PollingResult.Change change) {
+		if( adaptivePollingLimit > 0 ){
+			AdaptivePolling.of(project.getFullName()).polled(
+					change == PollingResult.Change.SIGNIFICANT || change == PollingResult.Change.INCOMPARABLE);
+		}
+	}
+
+	/**
+	 * Returns the revision reported or, when polling by revision token,
+	 * printed by the polling shell.
+	 * 
+	 * @return 
+	 *      The revision, null if there is none.
+	 */
+	private String getRevision(PollingCache.Result result) throws IOException {
+		PollingReport report = PollingReport.parse(result.report);
+		if( report != null && report.getRevision() != null ){
+			return report.getRevision();
+		}
+		if( pollForRevision && result.output.trim().length() > 0 ){
+			return result.output.trim();
+		}
+		return null;
+	}
+
+	/**
+	 * Compares the current revision with the one recorded for the last build.
+	 */
+	private PollingResult.Change compareRevision(SCMRevisionState baseline, String revision, TaskListener listener) {
+		if( !(baseline instanceof ShellScriptRevisionState) ){
+			listener.getLogger().println("No revision recorded for the last build, current revision is " + revision);
+			return PollingResult.Change.INCOMPARABLE;
+		}
+
+		String last = ((ShellScriptRevisionState)baseline).getRevision();
+		if( last.equals(revision) ){
+			return PollingResult.Change.NONE;
+		}
+		listener.getLogger().println("Revision changed from " + last + " to " + revision);
+		return PollingResult.Change.SIGNIFICANT;
+	}
+
+	
+	/* (non-Javadoc)
+	 * @see hudson.scm.SCM#getDescriptor()
+	 */
+	@Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+	/**
+	 * Helper method to run the polling shell.  When polling, the result of an
+	 * identical polling shell run on the same node is reused if it is recent
+	 * enough, polls already running for the same job and polling shell are
+	 * joined, and the polling shell only runs once a polling slot is free.
+	 * Only then does the poll count as running on the polling node, and the
+	 * scratch directory is created.
+	 * Polling shells referring to <tt>$SSSCM_POLL_RESULT</tt> get a file to
+	 * report their result to.
+	 * 
+	 * @param job 
+	 *      The full name of the job polled, for the metrics.
+	 *      
+	 * @param env 
+	 *      The environment variables of the polling shell.
+	 *      
+	 * @param captureOutput 
+	 *      Set to true to capture stdout of the polling shell in the result.
+	 *      
+	 * @param forPoll 
+	 *      Set to true when polling, false when recording the revision of a
+	 *      build, which always runs the polling shell.  The result is cached
+	 *      either way.
+	 *      
+	 * @param forced 
+	 *      Set to true to run the polling shell for a poll instead of reusing
+	 *      a cached result or joining a running poll.
+	 *      
+	 * @param lease 
+	 *      The lease of the polling node the workspace is a scratch directory
+	 *      on, null when running in the workspace of the job.
+	 *      
+	 * @return 
+	 *      The result of the polling shell.
+	 */
+	private PollingCache.Result runPollingShell(String job, Launcher launcher, FilePath workspace, TaskListener listener,
+			Map<String,String> env, boolean captureOutput, boolean forPoll, boolean forced, PollingNodes.Lease lease)
+			throws IOException, InterruptedException {
+		String shellCmd = getEffectivePollingShell();
+		long ttl = getDescriptor().getPollingCacheTtl() * 1000L;
+		PollingCache cache = ttl > 0 ? PollingCache.of(workspace) : null;
+		// Polls in the scratch directory of a job may share the results of
+		// other jobs, polls in a workspace only those of the same workspace.
+		String key = PollingCache.key(shellCmd, env, captureOutput,
+				forPoll && pollWithoutWorkspace && !isBatchPolled() ? null : workspace.getRemote());
+
+		if(cache != null && forPoll && !forced) {
+			PollingCache.Result cached = cache.get(key, ttl);
+			if(cached != null) {
+				listener.getLogger().println("Reusing the result of an identical polling shell run " + cached.getAge() / 1000 + "s ago");
+				return cached;
+			}
+		}
+
+		// Polls of the same job and polling shell arriving while one is
+		// running share its result instead of running the shell again, even
+		// when they were sent to another node.  A forced poll may have been
+		// notified of a commit the running one started too early to see.
+		PollingCache.Flight flight = forPoll && !forced ? PollingCache.board(job + '\0' + key) : null;
+		if(flight != null && !flight.isPilot()) {
+			listener.getLogger().println("Waiting for the result of the same poll already running");
+			return flight.await();
+		}
+
+		PollingCache.Result result = null;
+		try {
+			FilePath reportFile = null;
+			if(PollingReport.isUsedBy(shellCmd)) {
+				reportFile = ScriptCache.of(workspace).getDirectory(workspace).child("result-" + UUID.randomUUID() + ".txt");
+				env = new HashMap<String,String>(env);
+				env.put(PollingReport.VARIABLE, reportFile.getRemote());
+			}
+
+			ByteArrayOutputStream out = captureOutput ? new ByteArrayOutputStream() : null;
+			int rc;
+			if(forPoll) {
+				PollingScheduler.Slot slot = PollingScheduler.acquire(pollingConcurrencyKey, pollingConcurrencyLimit,
+						getDescriptor().getPollingThreads(), listener);
+				try {
+					// only the time the shell runs makes up the poll duration of the node
+					if(lease != null) {
+						Node node = lease.getNode();
+						lease.start();
+						listener.getLogger().println("Polling on " + (node.getNodeName().length() == 0 ? "the controller" : node.getNodeName())
+								+ " (" + (lease.getRunning() - 1) + " other polls pending or running)");
+						workspace.mkdirs();
+					}
+					rc = this.executePolling(job, shellCmd, launcher, workspace, listener, out, env);
+				} finally {
+					if(lease != null)
+						lease.release();
+					slot.release();
+				}
+			} else {
+				rc = this.execute(shellCmd, launcher, workspace, listener, out, pollingTimeout, env, job, ShellMetrics.POLLING);
+			}
+			String report = reportFile != null ? reportFile.act(new PollingReport.ReadAndDelete()) : null;
+			if(rc == TIMED_OUT) {
+				if(forPoll)
+					// a polling failure rather than "no changes"
+					throw new AbortException("Polling shell timed out after " + pollingTimeout + " seconds");
+				return new PollingCache.Result(rc, out != null ? out.toString() : null, report);
+			}
+
+			result = new PollingCache.Result(rc, out != null ? out.toString() : null, report);
+			if(cache != null)
+				cache.put(key, result, ttl);
+			return result;
+		} finally {
+			if(flight != null)
+				flight.land(result);
+		}
+	}
+
+	/**
+	 * Helper method to execute the polling shell for a poll, in the warm shell
+	 * of the node if enabled and available.  Scripts which override the
+	 * interpreter with <tt>#!</tt> are always launched.
+	 * 
+	 * @see #execute(String, Launcher, FilePath, TaskListener, OutputStream, int, Map, String, String)
+	 */
+	private int executePolling(String job, String shellCmd, Launcher launcher, FilePath workspace, TaskListener listener,
+			OutputStream stdout, Map<String,String> env) throws IOException, InterruptedException {
+		if(useWarmShell && !templateFor(shellCmd).hasInterpreter()) {
+			try {
+				long start = System.currentTimeMillis();
+				CountingOutputStream log = new CountingOutputStream(listener.getLogger());
+				Integer rc = WarmShell.run(workspace, SHELL, shellCmd, env, stdout != null ? stdout : log,
+						log, pollingTimeout, getDescriptor().getWarmShellMaxUses());
+				if(rc != null) {
+					getDescriptor().getMetrics().executed(job, workspace, ShellMetrics.POLLING, System.currentTimeMillis() - start,
+							rc.intValue(), log.getByteCount(), false);
+					if(rc.intValue() == TIMED_OUT)
+						listener.error("Shell command timed out after " + pollingTimeout + " seconds and was killed");
+					return rc.intValue();
+				}
+			} catch (IOException e) {
+				Util.displayIOException(e,listener);
+				e.printStackTrace(listener.error("Warm shell failed, launching the polling shell instead"));
+			}
+		}
+		return this.execute(shellCmd, launcher, workspace, listener, stdout, pollingTimeout, env, job, ShellMetrics.POLLING);
+	}
+
+	/**
+	 * Helper method to execute a shell command.  The shell command is
+	 * written to a script file on the node, unless it can be passed on the
+	 * command line of the shell.
+	 * 
+	 * @param shellCmd 
+	 *      The shell command to be executed.
+	 *      
+	 * @param launcher 
+	 *      The process launcher.
+	 *      
+	 * @param workspace 
+	 *      The workspace where the shell command is going to be executed.
+	 *      
+	 * @param listener 
+	 *      The TaskListener
+	 *      
+	 * @param stdout 
+	 *      Where stdout of the shell command goes, or null to send it to the
+	 *      listener.  When captured, stderr still goes to the listener.
+	 *      
+	 * @param timeout 
+	 *      The number of seconds after which the shell command and all of its
+	 *      child processes are killed, 0 for no timeout.
+	 *      
+	 * @param env 
+	 *      The environment variables of the shell command.
+	 *      
+	 * @param job 
+	 *      The full name of the job the shell command runs for, for the
+	 *      metrics.
+	 *      
+	 * @param shell 
+	 *      {@link ShellMetrics#CHECKOUT} or {@link ShellMetrics#POLLING}, for
+	 *      the metrics.
+	 *      
+	 * @return 
+	 *      The execution status of the shell command, {@link #TIMED_OUT} if
+	 *      it was killed after the timeout.
+	 *      
+	 * @throws IOException
+	 *      If there is an exception during the shell command execution.
+	 *      
+	 * @throws InterruptedException
+	 *      If there is an exception during the shell command execution.
+	 */
+	int execute(String shellCmd, Launcher launcher, FilePath workspace, TaskListener listener, OutputStream stdout, int timeout,
+			Map<String,String> env, String job, String shell) throws IOException, InterruptedException {
+		ShellMetrics metrics = getDescriptor().getMetrics();
+		long start = System.currentTimeMillis();
+		int capacity = getDescriptor().getScriptCacheSize();
+		ScriptCache cache = capacity > 0 ? ScriptCache.of(workspace) : null;
+		LaunchTemplate template = templateFor(shellCmd);
+		// shells naming their interpreter or too long for the command line still need a file
+		String[] inline = useInlineScript ? template.inlineCommandLine() : null;
+		FilePath script=null;
+		try {
+			if(inline == null) {
+				try {
+					if(cache != null)
+						script = cache.get(workspace, TEMP_FILE_NAME, TEMP_FILE_EXT, shellCmd, template.getDigest(), capacity);
+					else
+						script = workspace.createTextTempFile(TEMP_FILE_NAME, TEMP_FILE_EXT, shellCmd, false);
+				} catch (IOException e) {
+					metrics.scriptFailed(job, workspace, shell);
+					Util.displayIOException(e,listener);
+					e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_UnableToProduceScript()));
+					return -1;
+				}
+			}
+
+			int r;
+			CountingOutputStream log = new CountingOutputStream(listener.getLogger());
+			boolean launched = false;
+			try {
+				Launcher.ProcStarter starter = launcher.launch().cmds(inline != null ? inline : template.commandLine(script)).envs(env).pwd(workspace);
+				if(inline != null)
+					// prints the command line without the script text
+					starter.masks(template.inlineMasks());
+				if(stdout != null)
+					starter.stdout(stdout).stderr(log);
+				else
+					starter.stdout(log);
+				Proc proc = starter.start();
+				launched = true;
+				r = join(proc, timeout, listener);
+			} catch (IOException e) {
+				Util.displayIOException(e,listener);
+				e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_CommandFailed()));
+				r = -1;
+			}
+			metrics.executed(job, workspace, shell, System.currentTimeMillis() - start, r, log.getByteCount(), launched);
+			// The shell could not open the script, so it is no longer on the node.
+			if(cache != null && script != null && r == SCRIPT_NOT_FOUND)
+				cache.invalidate(script);
+			return r;
+		} finally {
+			try {
+				// Cached scripts are reused and removed by the cache's eviction.
+				if(script!=null && cache!=null)
+					cache.release(script);
+				else if(script!=null)
+					script.delete();
+			} catch (IOException e) {
+				Util.displayIOException(e,listener);
+				e.printStackTrace( listener.fatalError(Messages.CommandInterpreter_UnableToDelete(script)) );
+			}
+		}
+
+	}
+	
+	/**
+	 * Waits for a launched shell command, killing it together with all of
+	 * its child processes once the timeout has expired.
+	 * 
+	 * @param proc 
+	 *      The launched shell command.
+	 *      
+	 * @param timeout 
+	 *      The timeout in seconds, 0 to wait forever.
+	 *      
+	 * @param listener 
+	 *      The TaskListener
+	 *      
+	 * @return 
+	 *      The exit code of the shell command, {@link #TIMED_OUT} if it was
+	 *      killed after the timeout.
+	 */
+	static int join(final Proc proc, int timeout, TaskListener listener) throws IOException, InterruptedException {
+		if(timeout <= 0)
+			return proc.join();
+
+		final AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = WATCHDOG.schedule(new Runnable() {
+			public void run() {
+				try {
+					if(proc.isAlive()) {
+						timedOut.set(true);
+						// kills the whole process tree of the shell
+						proc.kill();
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to kill a timed out shell", e);
+				} catch (InterruptedException e) {
+					LOGGER.log(Level.WARNING, "Interrupted while killing a timed out shell", e);
+				}
+			}
+		}, timeout, TimeUnit.SECONDS);
+
+		int r;
+		try {
+			r = proc.join();
+		} finally {
+			watchdog.cancel(false);
+		}
+		if(timedOut.get()) {
+			listener.error("Shell command timed out after " + timeout + " seconds and was killed");
+			return TIMED_OUT;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the launch template of a shell, reusing the templates of the
+	 * checkout and polling shells.  Other shells, such as checkout steps,
+	 * get a new template.
+	 * 
+	 * @param shellCmd 
+	 *      The shell command.
+	 *      
+	 * @return 
+	 *      The launch template of the shell command.
+	 */
+	LaunchTemplate templateFor(String shellCmd) {
+		LaunchTemplate template = pollingTemplate;
+		if(template != null && template.isFor(shellCmd))
+			return template;
+		template = checkoutTemplate;
+		if(template != null && template.isFor(shellCmd))
+			return template;
+		return LaunchTemplate.of(shellCmd, SHELL);
+	}
+
+	/**
+	 * Returns the command line running a shell command from its script file.
+	 * 
+	 * @param shellCmd
+	 *      The shell command.
+	 *      
+	 * @param script
+	 *      The file on the node holding the shell command.
+	 *      
+	 * @return
+	 *      The interpreter, its arguments and the path of the script file.
+	 */
+	String[] buildCommandLine(String shellCmd, FilePath script) {
+		return templateFor(shellCmd).commandLine(script);
+	}
+
+	
+	/**
+     * Descriptor for {@link ShellScriptSCM}. Used as a singleton.
+     * The class is marked as public so that it can be accessed from views.
+     *
      * <p>
      * See <tt>views/hudson/plugins/SSSCM/sssscm/*.jelly</tt>
      * for the actual HTML fragment for the configuration screen.
@@ -367,18 +1918,559 @@ public class ShellScriptSCM extends SCM implements Serializable{
     @Extension // this marker indicates Hudson that this is an implementation of an extension point.
     public static final class DescriptorImpl extends SCMDescriptor<ShellScriptSCM> implements hudson.model.ModelObject {
 
+        /**
+         * The default number of scripts cached on each node.
+         */
+        public static final int DEFAULT_SCRIPT_CACHE_SIZE = 0;
+
+        /**
+         * The number of scripts cached on each node, 0 to write a new
+         * temporary script for every execution.
+         */
+        private int scriptCacheSize = DEFAULT_SCRIPT_CACHE_SIZE;
+
+        /**
+         * How long in seconds the result of a polling shell is reused by
+         * polls of the same polling shell on the same node, 0 to disable.
+         */
+        private int pollingCacheTtl;
+
+        /**
+         * The number of polling shells which may run at once, 0 for no limit.
+         */
+        private int pollingThreads;
+
+        /**
+         * The default number of polls a warm shell runs before it is replaced.
+         */
+        public static final int DEFAULT_WARM_SHELL_MAX_USES = 100;
+
+        /**
+         * The number of polls a warm shell runs before it is replaced.
+         */
+        private int warmShellMaxUses = DEFAULT_WARM_SHELL_MAX_USES;
+
+        /**
+         * The number of KB of output logged by a poll which neither fails
+         * nor finds changes, 0 for no limit.
+         */
+        private int pollingLogLimit;
+
+        /**
+         * The token commit notifications must carry, null to refuse them.
+         */
+        private Secret notifyToken;
+
+        /**
+         * The size in MB the caches of a node may take together before the
+         * least recently used ones are evicted, 0 for no limit.
+         */
+        private int mirrorCacheSize;
+
+        /**
+         * The shell answering the polls of jobs with a batch polling key,
+         * null if there is none.
+         */
+        private String batchPollingShell;
+
+        /**
+         * The number of seconds for which the revisions printed by the batch
+         * polling shell are reused.
+         */
+        private int batchPollingInterval;
+
+        /**
+         * The number of seconds after which the batch polling shell is
+         * killed, 0 for no timeout.
+         */
+        private int batchPollingTimeout;
+
+        /**
+         * Set to true to pass the environment of the build instead of the
+         * environment of the controller to launched shells.
+         */
+        private boolean useBuildEnvironment;
+
+        /**
+         * The pattern of the names of the variables passed to launched shells
+         * when passing the build environment, null to pass all of them.
+         */
+        private String environmentIncludes;
+
+        /**
+         * The pattern of the names of the variables never passed to launched
+         * shells when passing the build environment, null to exclude none.
+         */
+        private String environmentExcludes;
+
+        private transient Pattern environmentIncludePattern;
+
+        private transient Pattern environmentExcludePattern;
+
+        private transient final ShellMetrics metrics = new ShellMetrics();
+
         public DescriptorImpl() {
 			super(ShellScriptSCM.class, null);
 			load();
+			compileEnvironmentPatterns();
 		}
     	
 		@Override
 		public String getDisplayName() {
 			return "Shell Script";
 		}
+
+		/**
+		 * Returns the number of scripts cached on each node.
+		 * 
+		 * @return 
+		 *      The script cache size, 0 if script caching is disabled.
+		 */
+		public int getScriptCacheSize() {
+			return scriptCacheSize;
+		}
+
+		/**
+		 * Set the number of scripts cached on each node.
+		 * 
+		 * @param scriptCacheSize 
+		 *      The script cache size, 0 to disable script caching.
+		 */
+		public void setScriptCacheSize(int scriptCacheSize) {
+			this.scriptCacheSize = Math.max(0, scriptCacheSize);
+		}
+		
+		/**
+		 * Returns how long the result of a polling shell is reused.
+		 * 
+		 * @return 
+		 *      The polling cache time to live in seconds, 0 if disabled.
+		 */
+		public int getPollingCacheTtl() {
+			return pollingCacheTtl;
+		}
+
+		/**
+		 * Set how long the result of a polling shell is reused.
+		 * 
+		 * @param pollingCacheTtl 
+		 *      The polling cache time to live in seconds, 0 to disable.
+		 */
+		public void setPollingCacheTtl(int pollingCacheTtl) {
+			this.pollingCacheTtl = Math.max(0, pollingCacheTtl);
+		}
+		
+		/**
+		 * Returns the number of polling shells which may run at once.
+		 * 
+		 * @return 
+		 *      The polling thread budget, 0 for no limit.
+		 */
+		public int getPollingThreads() {
+			return pollingThreads;
+		}
+
+		/**
+		 * Set the number of polling shells which may run at once.
+		 * 
+		 * @param pollingThreads 
+		 *      The polling thread budget, 0 for no limit.
+		 */
+		public void setPollingThreads(int pollingThreads) {
+			this.pollingThreads = Math.max(0, pollingThreads);
+		}
+		
+		/**
+		 * Returns the number of polls a warm shell runs before it is replaced.
+		 * 
+		 * @return 
+		 *      The maximum number of uses of a warm shell.
+		 */
+		public int getWarmShellMaxUses() {
+			return warmShellMaxUses;
+		}
+
+		/**
+		 * Set the number of polls a warm shell runs before it is replaced.
+		 * 
+		 * @param warmShellMaxUses 
+		 *      The maximum number of uses of a warm shell, at least 1.
+		 */
+		public void setWarmShellMaxUses(int warmShellMaxUses) {
+			this.warmShellMaxUses = Math.max(1, warmShellMaxUses);
+		}
+
+		/**
+		 * Returns the limit of the output logged by uneventful polls.
+		 * 
+		 * @return 
+		 *      The number of KB of head and tail of the output logged by a
+		 *      poll which neither fails nor finds changes, 0 for no limit.
+		 */
+		public int getPollingLogLimit() {
+			return pollingLogLimit;
+		}
+
+		/**
+		 * Set the limit of the output logged by uneventful polls.
+		 * 
+		 * @param pollingLogLimit 
+		 *      The number of KB of head and tail of the output logged by a
+		 *      poll which neither fails nor finds changes, 0 for no limit.
+		 */
+		public void setPollingLogLimit(int pollingLogLimit) {
+			this.pollingLogLimit = Math.max(0, pollingLogLimit);
+		}
+
+		/**
+		 * Returns whether launched shells get the environment of the build.
+		 * 
+		 * @return 
+		 *      True if launched shells get the filtered environment of the
+		 *      build, false if they get the environment of the controller.
+		 */
+		public boolean isUseBuildEnvironment() {
+			return useBuildEnvironment;
+		}
+
+		/**
+		 * Set whether launched shells get the environment of the build.
+		 * 
+		 * @param useBuildEnvironment 
+		 *      Set to true to pass the filtered environment of the build,
+		 *      false to pass the environment of the controller.
+		 */
+		public void setUseBuildEnvironment(boolean useBuildEnvironment) {
+			this.useBuildEnvironment = useBuildEnvironment;
+		}
+
+		/**
+		 * Returns the pattern of the names of the variables passed to
+		 * launched shells.
+		 * 
+		 * @return 
+		 *      A regular expression, null to pass all variables.
+		 */
+		public String getEnvironmentIncludes() {
+			return environmentIncludes;
+		}
+
+		/**
+		 * Set the pattern of the names of the variables passed to launched
+		 * shells.
+		 * 
+		 * @param environmentIncludes 
+		 *      A regular expression, empty to pass all variables.
+		 */
+		public void setEnvironmentIncludes(String environmentIncludes) {
+			this.environmentIncludes = Util.fixEmptyAndTrim(environmentIncludes);
+			compileEnvironmentPatterns();
+		}
+
+		/**
+		 * Returns the pattern of the names of the variables never passed to
+		 * launched shells.
+		 * 
+		 * @return 
+		 *      A regular expression, null to exclude no variables.
+		 */
+		public String getEnvironmentExcludes() {
+			return environmentExcludes;
+		}
+
+		/**
+		 * Set the pattern of the names of the variables never passed to
+		 * launched shells.
+		 * 
+		 * @param environmentExcludes 
+		 *      A regular expression, empty to exclude no variables.
+		 */
+		public void setEnvironmentExcludes(String environmentExcludes) {
+			this.environmentExcludes = Util.fixEmptyAndTrim(environmentExcludes);
+			compileEnvironmentPatterns();
+		}
+
+		Pattern getEnvironmentIncludePattern() {
+			return environmentIncludePattern;
+		}
+
+		Pattern getEnvironmentExcludePattern() {
+			return environmentExcludePattern;
+		}
+
+		private void compileEnvironmentPatterns() {
+			environmentIncludePattern = environmentIncludes != null ? Pattern.compile(environmentIncludes) : null;
+			environmentExcludePattern = environmentExcludes != null ? Pattern.compile(environmentExcludes) : null;
+		}
+
+		/**
+		 * Returns the number of polling shells which timed out since startup.
+		 * 
+		 * @return 
+		 *      The number of polling timeouts.
+		 */
+		public long getPollingTimeouts() {
+			return metrics.getTimeouts(ShellMetrics.POLLING);
+		}
+
+		/**
+		 * Returns the statistics of the shells run per job since startup.
+		 * 
+		 * @return 
+		 *      The statistics, sorted by job.
+		 */
+		public List<ShellMetrics.Stats> getJobMetrics() {
+			return metrics.getJobs();
+		}
+
+		/**
+		 * Returns the statistics of the shells run per node since startup.
+		 * 
+		 * @return 
+		 *      The statistics, sorted by node.
+		 */
+		public List<ShellMetrics.Stats> getNodeMetrics() {
+			return metrics.getNodes();
+		}
+
+		ShellMetrics getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * Serves the statistics in the Prometheus text format at
+		 * <tt>/ssscm-metrics/prometheus</tt>.
+		 */
+		public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+			Hudson.getInstance().checkPermission(Hudson.READ);
+			rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+			metrics.writePrometheus(rsp.getWriter());
+		}
 		
+		/**
+		 * Returns the size the caches of a node may take together.
+		 * 
+		 * @return 
+		 *      The size in MB, 0 for no limit.
+		 */
+		public int getMirrorCacheSize() {
+			return mirrorCacheSize;
+		}
+
+		/**
+		 * Set the size the caches of a node may take together.
+		 * 
+		 * @param mirrorCacheSize 
+		 *      The size in MB, 0 for no limit.
+		 */
+		public void setMirrorCacheSize(int mirrorCacheSize) {
+			this.mirrorCacheSize = Math.max(0, mirrorCacheSize);
+		}
+
+		/**
+		 * Returns the shell answering the polls of jobs with a batch polling
+		 * key.
+		 * 
+		 * @return 
+		 *      The batch polling shell, null if there is none.
+		 */
+		public String getBatchPollingShell() {
+			return batchPollingShell;
+		}
+
+		/**
+		 * Set the shell answering the polls of jobs with a batch polling key.
+		 * The revisions printed by the previous shell are dropped.
+		 * 
+		 * @param batchPollingShell 
+		 *      The batch polling shell, empty for none.
+		 */
+		public void setBatchPollingShell(String batchPollingShell) {
+			this.batchPollingShell = Util.fixEmptyAndTrim(batchPollingShell);
+			BatchPoll.reset();
+		}
+
+		/**
+		 * Returns the number of seconds for which the revisions printed by
+		 * the batch polling shell are reused.
+		 * 
+		 * @return 
+		 *      The interval in seconds, 0 to run the batch polling shell for
+		 *      every poll.
+		 */
+		public int getBatchPollingInterval() {
+			return batchPollingInterval;
+		}
+
+		/**
+		 * Set the number of seconds for which the revisions printed by the
+		 * batch polling shell are reused.
+		 * 
+		 * @param batchPollingInterval 
+		 *      The interval in seconds, 0 to run the batch polling shell for
+		 *      every poll.
+		 */
+		public void setBatchPollingInterval(int batchPollingInterval) {
+			this.batchPollingInterval = Math.max(0, batchPollingInterval);
+		}
+
+		/**
+		 * Returns the number of seconds after which the batch polling shell
+		 * is killed.
+		 * 
+		 * @return 
+		 *      The timeout in seconds, 0 for no timeout.
+		 */
+		public int getBatchPollingTimeout() {
+			return batchPollingTimeout;
+		}
+
+		/**
+		 * Set the number of seconds after which the batch polling shell is
+		 * killed.
+		 * 
+		 * @param batchPollingTimeout 
+		 *      The timeout in seconds, 0 for no timeout.
+		 */
+		public void setBatchPollingTimeout(int batchPollingTimeout) {
+			this.batchPollingTimeout = Math.max(0, batchPollingTimeout);
+		}
+
+		/**
+		 * Returns the token commit notifications must carry.
+		 * 
+		 * @return 
+		 *      The token, null if commit notifications are refused.
+		 */
+		public Secret getNotifyToken() {
+			return notifyToken;
+		}
+
+		/**
+		 * Set the token commit notifications must carry.
+		 * 
+		 * @param notifyToken 
+		 *      The token, empty to refuse commit notifications.
+		 */
+		public void setNotifyToken(String notifyToken) {
+			notifyToken = Util.fixEmptyAndTrim(notifyToken);
+			this.notifyToken = notifyToken != null ? Secret.fromString(notifyToken) : null;
+		}
+
+		/**
+		 * Receives a commit notification, see {@link NotifyCommitAction}.
+		 * The request carries the notification token in the <tt>token</tt>
+		 * parameter or the <tt>X-SSSCM-Token</tt> header, the notification
+		 * key in the <tt>key</tt> parameter and optionally the new revision
+		 * in the <tt>revision</tt> parameter.
+		 */
+		public void doNotifyCommit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+			if(notifyToken == null) {
+				rsp.sendError(StaplerResponse.SC_NOT_FOUND, "Commit notifications are disabled");
+				return;
+			}
+			String token = req.getHeader("X-SSSCM-Token");
+			if(token == null)
+				token = req.getParameter("token");
+			if(token == null || !MessageDigest.isEqual(token.getBytes("UTF-8"), notifyToken.getPlainText().getBytes("UTF-8"))) {
+				rsp.sendError(StaplerResponse.SC_FORBIDDEN, "Invalid commit notification token");
+				return;
+			}
+			String key = Util.fixEmptyAndTrim(req.getParameter("key"));
+			if(key == null) {
+				rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Missing key");
+				return;
+			}
+			String revision = Util.fixEmptyAndTrim(req.getParameter("revision"));
+
+			List<String> scheduled;
+			// the request is authorized by the token, not by its user
+			SecurityContext context = SecurityContextHolder.getContext();
+			Authentication auth = context.getAuthentication();
+			context.setAuthentication(ACL.SYSTEM);
+			try {
+				scheduled = notifyCommit(key, revision, new Cause.RemoteCause(req.getRemoteAddr(),
+						"commit notification for " + key + (revision != null ? " at " + revision : "")));
+			} finally {
+				context.setAuthentication(auth);
+			}
+
+			if(scheduled.isEmpty()) {
+				rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No job is notified with key " + key);
+				return;
+			}
+			rsp.setContentType("text/plain; charset=UTF-8");
+			PrintWriter w = rsp.getWriter();
+			for(String line : scheduled)
+				w.println(line);
+			w.flush();
+		}
+
+		/**
+		 * Polls or builds the jobs notified with the given key.  With a
+		 * revision, jobs whose last build was made from that revision are
+		 * left alone and the others are built.  Without one, jobs are polled
+		 * right away, or built if they are not polled at all.
+		 * 
+		 * @return 
+		 *      What was done per job, empty if no job is notified with the key.
+		 */
+		@SuppressWarnings("unchecked")
+		List<String> notifyCommit(String key, String revision, Cause cause) {
+			List<String> scheduled = new ArrayList<String>();
+			for(AbstractProject<?,?> project : (List<AbstractProject<?,?>>)(List)Hudson.getInstance().getAllItems(AbstractProject.class)) {
+				SCM scm = project.getScm();
+				if(!(scm instanceof ShellScriptSCM) || !key.equals(((ShellScriptSCM)scm).getNotifyKey()))
+					continue;
+				if(!project.isBuildable()) {
+					scheduled.add("Skipped " + project.getFullName() + ", it is disabled");
+				} else if(revision != null) {
+					AbstractBuild<?,?> last = project.getLastBuild();
+					SCMRevisionState state = last != null ? last.getAction(SCMRevisionState.class) : null;
+					if(state instanceof ShellScriptRevisionState && revision.equals(((ShellScriptRevisionState)state).getRevision())) {
+						scheduled.add("Skipped " + project.getFullName() + ", it is at revision " + revision);
+					} else {
+						project.scheduleBuild(cause);
+						scheduled.add("Scheduled a build of " + project.getFullName());
+					}
+				} else {
+					SCMTrigger trigger = project.getTrigger(SCMTrigger.class);
+					if(trigger != null) {
+						// the notification overrides adaptive polling and
+						// the cached polling results
+						AdaptivePolling.reset(project.getFullName());
+						PollingCache.force(project.getFullName());
+						trigger.run();
+						scheduled.add("Scheduled polling of " + project.getFullName());
+					} else {
+						project.scheduleBuild(cause);
+						scheduled.add("Scheduled a build of " + project.getFullName());
+					}
+				}
+			}
+			return scheduled;
+		}
+
 		@Override
 		public boolean configure(StaplerRequest req, net.sf.json.JSONObject json) throws FormException {
+			setScriptCacheSize(json.optInt("scriptCacheSize", DEFAULT_SCRIPT_CACHE_SIZE));
+			setPollingCacheTtl(json.optInt("pollingCacheTtl", 0));
+			setPollingThreads(json.optInt("pollingThreads", 0));
+			setWarmShellMaxUses(json.optInt("warmShellMaxUses", DEFAULT_WARM_SHELL_MAX_USES));
+			setPollingLogLimit(json.optInt("pollingLogLimit", 0));
+			setNotifyToken(json.optString("notifyToken", null));
+			setMirrorCacheSize(json.optInt("mirrorCacheSize", 0));
+			setBatchPollingShell(json.optString("batchPollingShell", null));
+			setBatchPollingInterval(json.optInt("batchPollingInterval", 0));
+			setBatchPollingTimeout(json.optInt("batchPollingTimeout", 0));
+			setUseBuildEnvironment(json.optBoolean("useBuildEnvironment"));
+			try {
+				setEnvironmentIncludes(json.optString("environmentIncludes", null));
+				setEnvironmentExcludes(json.optString("environmentExcludes", null));
+			} catch (PatternSyntaxException e) {
+				throw new FormException("Invalid environment variable pattern: " + e.getDescription(), "environmentIncludes");
+			}
+
 	        // Save configuration
             save();
 
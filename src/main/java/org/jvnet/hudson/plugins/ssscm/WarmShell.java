@@ -0,0 +1,445 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ProcessTree;
+
+/**
+ * A long-lived shell on a node which runs polling shells without launching a
+ * new process through the channel for each of them.
+ *
+ * <p>
+ * Each script is written to the standard input of the warm shell as one
+ * frame: a subshell which changes into the working directory, exports the
+ * environment, enables <tt>-xe</tt> and <tt>eval</tt>s the quoted script,
+ * followed by an end marker carrying the exit code on stdout and stderr.  The
+ * subshell isolates the warm shell from the script, so that <tt>exit</tt>,
+ * <tt>cd</tt> or a failing command in the script do not affect it.
+ *
+ * <p>
+ * There is one warm shell per node.  It is replaced after a number of uses,
+ * after being idle for a while and after a timeout or a protocol error.  While
+ * it is busy, further polls are launched the usual way.  Idle warm shells are
+ * also killed by {@link WarmShellReaper}, so that they do not linger on nodes
+ * which are no longer polled.
+ */
+final class WarmShell {
+
+	private static final Logger LOGGER = Logger.getLogger(WarmShell.class.getName());
+
+	/**
+	 * The environment variable marking all processes started by a warm shell,
+	 * so that they can be killed together.
+	 */
+	private static final String COOKIE = "SSSCM_WARM_SHELL";
+
+	/**
+	 * How long a warm shell may be idle before it is replaced.
+	 */
+	private static final long MAX_IDLE = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * How long to wait for the end marker on stderr once it was seen on stdout.
+	 */
+	private static final long STDERR_GRACE = TimeUnit.SECONDS.toMillis(10);
+
+	private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	/**
+	 * Kills warm shells which have run a script longer than its timeout.
+	 */
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+	/**
+	 * The warm shell of this node, null if none is running.
+	 */
+	private static WarmShell instance;
+
+	/**
+	 * True while the warm shell of this node runs a script.
+	 */
+	private static boolean busy;
+
+	private final String id = UUID.randomUUID().toString();
+	private final Process process;
+	private final Writer stdin;
+	private final InputStream stdout;
+	private final Thread stderrPump;
+	private int uses;
+	private long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Where the stderr of the running script goes.  Guarded by this.
+	 */
+	private OutputStream stderrSink;
+
+	/**
+	 * The end marker of the running script once seen on stderr.  Guarded by this.
+	 */
+	private boolean stderrDone;
+
+	private WarmShell(String shell) throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(shell);
+		pb.environment().put(COOKIE, id);
+		process = pb.start();
+		stdin = new OutputStreamWriter(process.getOutputStream());
+		stdout = process.getInputStream();
+		stderrPump = new Thread("Warm shell stderr " + id) {
+			@Override
+			public void run() {
+				pumpStderr();
+			}
+		};
+		stderrPump.setDaemon(true);
+		stderrPump.start();
+	}
+
+	/**
+	 * Runs a script in the warm shell of the node the directory lives on.
+	 *
+	 * @param dir
+	 *      The directory to run the script in.
+	 *
+	 * @param shell
+	 *      The shell to keep running.
+	 *
+	 * @param script
+	 *      The script to run.
+	 *
+	 * @param env
+	 *      The environment variables of the script.
+	 *
+	 * @param stdout
+	 *      Where stdout of the script goes.
+	 *
+	 * @param stderr
+	 *      Where stderr of the script goes.
+	 *
+	 * @param timeout
+	 *      The number of seconds after which the script is killed, 0 for no
+	 *      timeout.
+	 *
+	 * @param maxUses
+	 *      The number of scripts a warm shell runs before it is replaced.
+	 *
+	 * @return
+	 *      The exit code of the script, {@link ShellScriptSCM#TIMED_OUT} if it
+	 *      was killed after the timeout, or null if the warm shell is busy
+	 *      and the script has to be launched the usual way.
+	 *
+	 * @throws IOException
+	 *      If the warm shell failed.  It is replaced on next use.
+	 */
+	static Integer run(FilePath dir, String shell, String script, Map<String,String> env, OutputStream stdout, OutputStream stderr,
+			int timeout, int maxUses) throws IOException, InterruptedException {
+		return dir.act(new Request(dir.getRemote(), shell, script, new HashMap<String,String>(env),
+				new RemoteOutputStream(stdout), new RemoteOutputStream(stderr), timeout, maxUses));
+	}
+
+	/**
+	 * Runs a script in the warm shell on the node.
+	 */
+	private static final class Request implements Callable<Integer, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final String shell;
+		private final String script;
+		private final Map<String,String> env;
+		private final OutputStream stdout;
+		private final OutputStream stderr;
+		private final int timeout;
+		private final int maxUses;
+
+		Request(String dir, String shell, String script, Map<String,String> env, OutputStream stdout, OutputStream stderr,
+				int timeout, int maxUses) {
+			this.dir = dir;
+			this.shell = shell;
+			this.script = script;
+			this.env = env;
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.timeout = timeout;
+			this.maxUses = maxUses;
+		}
+
+		public Integer call() throws IOException {
+			WarmShell warm = checkOut(shell, maxUses);
+			if(warm == null)
+				return null;
+
+			boolean healthy = false;
+			try {
+				int rc = warm.execute(dir, script, env, stdout, stderr, timeout);
+				healthy = rc != ShellScriptSCM.TIMED_OUT;
+				return rc;
+			} catch (InterruptedException e) {
+				throw (InterruptedIOException)new InterruptedIOException().initCause(e);
+			} finally {
+				stdout.flush();
+				stderr.flush();
+				checkIn(warm, healthy);
+			}
+		}
+	}
+
+	private static synchronized WarmShell checkOut(String shell, int maxUses) throws IOException {
+		if(busy)
+			return null;
+		if(instance != null && (instance.uses >= maxUses || instance.getIdle() >= MAX_IDLE)) {
+			instance.close();
+			instance = null;
+		}
+		if(instance == null)
+			instance = new WarmShell(shell);
+		instance.uses++;
+		busy = true;
+		return instance;
+	}
+
+	/**
+	 * Kills the warm shell of a node if it has been idle too long.
+	 *
+	 * @param channel
+	 *      The channel to the node.
+	 *
+	 * @return
+	 *      True if a warm shell was killed.
+	 */
+	static boolean reap(VirtualChannel channel) throws IOException, InterruptedException {
+		return channel.call(new Reap()).booleanValue();
+	}
+
+	/**
+	 * Kills the warm shell on the node if it has been idle too long.
+	 */
+	private static final class Reap implements Callable<Boolean, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		public Boolean call() {
+			return Boolean.valueOf(reapIdle());
+		}
+	}
+
+	private static synchronized boolean reapIdle() {
+		if(busy || instance == null || instance.getIdle() < MAX_IDLE)
+			return false;
+		instance.close();
+		instance = null;
+		return true;
+	}
+
+	private static synchronized void checkIn(WarmShell warm, boolean healthy) {
+		busy = false;
+		warm.lastUsed = System.currentTimeMillis();
+		if(!healthy) {
+			warm.close();
+			if(instance == warm)
+				instance = null;
+		}
+	}
+
+	private long getIdle() {
+		return System.currentTimeMillis() - lastUsed;
+	}
+
+	private int execute(String dir, String script, Map<String,String> env, OutputStream out, OutputStream err, int timeout) throws IOException, InterruptedException {
+		String marker = "__SSSCM_" + id + "_" + uses;
+		synchronized(this) {
+			stderrSink = err;
+			stderrDone = false;
+		}
+
+		StringBuilder frame = new StringBuilder();
+		frame.append("(\n");
+		frame.append("cd ").append(quote(dir)).append(" || exit 127\n");
+		for(Map.Entry<String,String> e : env.entrySet()) {
+			if(!VARIABLE_NAME.matcher(e.getKey()).matches())
+				continue;
+			// launchers unset empty variables, so does the warm shell
+			if(e.getValue().length() == 0)
+				frame.append("unset ").append(e.getKey()).append('\n');
+			else
+				frame.append("export ").append(e.getKey()).append('=').append(quote(e.getValue())).append('\n');
+		}
+		frame.append("set -xe\n");
+		frame.append("eval ").append(quote(script)).append('\n');
+		frame.append(") </dev/null\n");
+		frame.append("__ssscm_rc=$?\n");
+		frame.append("echo ").append(marker).append(" >&2\n");
+		frame.append("echo ").append(marker).append(" $__ssscm_rc\n");
+		stdin.write(frame.toString());
+		stdin.flush();
+
+		final AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = null;
+		if(timeout > 0) {
+			watchdog = WATCHDOG.schedule(new Runnable() {
+				public void run() {
+					timedOut.set(true);
+					close();
+				}
+			}, timeout, TimeUnit.SECONDS);
+		}
+
+		try {
+			Integer rc = readStdout(marker, out);
+			if(rc == null) {
+				if(timedOut.get())
+					return ShellScriptSCM.TIMED_OUT;
+				throw new IOException("Warm shell exited unexpectedly");
+			}
+			awaitStderr();
+			return rc.intValue();
+		} finally {
+			if(watchdog != null)
+				watchdog.cancel(false);
+		}
+	}
+
+	/**
+	 * Copies stdout of the script until the end marker.
+	 *
+	 * @return
+	 *      The exit code following the end marker, null if the warm shell
+	 *      died first.
+	 */
+	private Integer readStdout(String marker, OutputStream out) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while(readLine(stdout, line)) {
+			// ISO-8859-1 maps bytes to chars one to one, so indexes match
+			String text = line.toString("ISO-8859-1");
+			int i = text.indexOf(marker);
+			if(i >= 0) {
+				out.write(line.toByteArray(), 0, i);
+				try {
+					return Integer.valueOf(text.substring(i + marker.length()).trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed end marker from warm shell: " + text.substring(i));
+				}
+			}
+			line.writeTo(out);
+			line.reset();
+		}
+		return null;
+	}
+
+	private synchronized void awaitStderr() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + STDERR_GRACE;
+		while(!stderrDone) {
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0) {
+				LOGGER.fine("End marker of warm shell " + id + " not seen on stderr");
+				break;
+			}
+			wait(left);
+		}
+		stderrSink = null;
+	}
+
+	/**
+	 * Copies stderr of the running script to its sink until the warm shell
+	 * exits.
+	 */
+	private void pumpStderr() {
+		InputStream stderr = process.getErrorStream();
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		try {
+			while(readLine(stderr, line)) {
+				String text = line.toString("ISO-8859-1");
+				synchronized(this) {
+					int i = text.indexOf("__SSSCM_" + id + "_");
+					if(stderrSink != null)
+						stderrSink.write(line.toByteArray(), 0, i >= 0 ? i : line.size());
+					if(i >= 0) {
+						stderrDone = true;
+						notifyAll();
+					}
+				}
+				line.reset();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to copy stderr of warm shell " + id, e);
+		}
+	}
+
+	/**
+	 * Reads one line including its line feed.
+	 *
+	 * @return
+	 *      False if the stream ended before anything was read.
+	 */
+	private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+		int b;
+		while((b = in.read()) >= 0) {
+			line.write(b);
+			if(b == '\n')
+				return true;
+		}
+		return line.size() > 0;
+	}
+
+	/**
+	 * Kills the warm shell and every process it started.
+	 */
+	private void close() {
+		try {
+			ProcessTree.get().killAll(process, Collections.singletonMap(COOKIE, id));
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.FINE, "Interrupted while killing warm shell " + id, e);
+		}
+		process.destroy();
+	}
+
+	/**
+	 * Quotes a string for the shell.
+	 */
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+}
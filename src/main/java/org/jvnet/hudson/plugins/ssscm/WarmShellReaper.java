@@ -0,0 +1,64 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Periodically kills the warm shells which have been idle too long on every
+ * connected node, see {@link WarmShell}.
+ */
+@Extension
+public class WarmShellReaper extends AsyncPeriodicWork {
+
+	public WarmShellReaper() {
+		super("Warm shell reaper");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return 5 * MIN;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		for(Computer c : Hudson.getInstance().getComputers()) {
+			VirtualChannel channel = c.getChannel();
+			if(channel == null)
+				continue;
+			try {
+				if(WarmShell.reap(channel))
+					listener.getLogger().println("Killed the idle warm shell of " + c.getDisplayName());
+			} catch (IOException e) {
+				e.printStackTrace(listener.error("Failed to reap the warm shell of " + c.getDisplayName()));
+			}
+		}
+	}
+}
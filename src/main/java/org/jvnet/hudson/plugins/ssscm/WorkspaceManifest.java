@@ -0,0 +1,368 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Fingerprint;
+import hudson.model.FingerprintMap;
+import hudson.model.Hudson;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Fingerprinter;
+
+/**
+ * A manifest of the files in a workspace, kept between checkouts.
+ *
+ * <p>
+ * Each line of the manifest holds the MD5 digest, size, modification time
+ * and path of one file, separated by tabs:
+ *
+ * <pre>
+ * 0cc175b9c0f1b6a831c399e269772661	1	1300000000000	src/Foo.java
+ * </pre>
+ *
+ * The path is relative to the workspace with <tt>/</tt> separators, and
+ * backslashes, tabs and newlines in it are escaped with a backslash.  The
+ * first line records when the workspace was scanned.
+ *
+ * <p>
+ * After a checkout the workspace is scanned again.  Files whose size and
+ * modification time are unchanged keep their digest, so only new and
+ * modified files are read.  Files modified shortly before the previous scan
+ * are read anyway, as they may have changed again within the resolution of
+ * the modification time.
+ */
+final class WorkspaceManifest {
+
+	/**
+	 * The environment variable naming the manifest of the previous checkout.
+	 */
+	static final String VARIABLE = "SSSCM_MANIFEST";
+
+	/**
+	 * The first line of a manifest, followed by the time of the scan.
+	 */
+	private static final String HEADER = "# ssscm manifest 1 ";
+
+	/**
+	 * The coarsest modification time resolution of common file systems.
+	 */
+	private static final long MTIME_RESOLUTION = 2000;
+
+	/**
+	 * The maximum number of changed paths recorded in the changelog and
+	 * fingerprinted per checkout.
+	 */
+	static final int MAX_PATHS = 1000;
+
+	private WorkspaceManifest() {
+	}
+
+	/**
+	 * Returns the manifest of a workspace.  It lives in the temporary
+	 * directory of the plugin on the node, so that it is never part of the
+	 * workspace.
+	 *
+	 * @param workspace
+	 *      The workspace.
+	 *
+	 * @return
+	 *      The manifest, which does not exist before the first checkout.
+	 */
+	static FilePath of(FilePath workspace) throws IOException, InterruptedException {
+		return ScriptCache.of(workspace).getDirectory(workspace).child("manifest-" + Util.getDigestOf(workspace.getRemote()) + ".txt");
+	}
+
+	/**
+	 * The changes in a workspace since the previous manifest.
+	 */
+	static final class Delta implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * True if there was no previous manifest, so that every file is new.
+		 */
+		final boolean initial;
+
+		int files;
+		int hashed;
+		int added;
+		int modified;
+		int removed;
+
+		/**
+		 * The first {@link #MAX_PATHS} added, modified and removed paths.
+		 */
+		final List<String> paths = new ArrayList<String>();
+
+		/**
+		 * The digests of the first {@link #MAX_PATHS} added and modified files.
+		 */
+		final Map<String, String> digests = new LinkedHashMap<String, String>();
+
+		Delta(boolean initial) {
+			this.initial = initial;
+		}
+
+		boolean isEmpty() {
+			return added == 0 && modified == 0 && removed == 0;
+		}
+
+		private void changed(String path, String digest) {
+			if(paths.size() < MAX_PATHS) {
+				paths.add(path);
+				if(digest != null)
+					digests.put(path, digest);
+			}
+		}
+
+		/**
+		 * Writes the changes as one entry of the changelog, see
+		 * {@link ShellScriptChangeLogSet}.
+		 *
+		 * @param changelog
+		 *      The empty changelog file.
+		 */
+		void writeChangeLog(FilePath changelog) throws IOException, InterruptedException {
+			JSONObject json = new JSONObject();
+			json.put("timestamp", System.currentTimeMillis());
+			json.put("msg", "Files in the workspace: " + this);
+			json.put("paths", JSONArray.fromObject(paths));
+			changelog.write(json.toString() + "\n", "UTF-8");
+		}
+
+		/**
+		 * Records the fingerprints of the added and modified files for the
+		 * build.
+		 */
+		void recordFingerprints(AbstractBuild<?,?> build) throws IOException {
+			if(digests.isEmpty())
+				return;
+			FingerprintMap map = Hudson.getInstance().getFingerprintMap();
+			for(Map.Entry<String, String> e : digests.entrySet()) {
+				String name = e.getKey().substring(e.getKey().lastIndexOf('/') + 1);
+				Fingerprint fp = map.getOrCreate(null, name, e.getValue());
+				fp.add(build);
+			}
+			build.addAction(new Fingerprinter.FingerprintAction(build, new HashMap<String, String>(digests)));
+		}
+
+		@Override
+		public String toString() {
+			return added + " added, " + modified + " modified, " + removed + " removed";
+		}
+	}
+
+	/**
+	 * Scans the workspace, writes the new manifest and returns the changes
+	 * since the previous one.
+	 */
+	static final class Update implements FileCallable<Delta> {
+		private static final long serialVersionUID = 1L;
+
+		private final String manifest;
+
+		Update(FilePath manifest) {
+			this.manifest = manifest.getRemote();
+		}
+
+		public Delta invoke(File workspace, VirtualChannel channel) throws IOException {
+			File file = new File(manifest);
+			Map<String, Entry> previous = new HashMap<String, Entry>();
+			long previousScan = file.isFile() ? read(file, previous) : -1;
+
+			Delta delta = new Delta(previousScan < 0);
+			long scan = System.currentTimeMillis();
+			File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			try {
+				w.write(HEADER + scan + "\n");
+				scan(workspace, "", previous, previousScan, w, delta);
+			} finally {
+				w.close();
+			}
+			// whatever is left was not found in the workspace any more
+			for(String path : previous.keySet()) {
+				delta.removed++;
+				delta.changed(path, null);
+			}
+
+			if(!tmp.renameTo(file)) {
+				file.delete();
+				if(!tmp.renameTo(file)) {
+					tmp.delete();
+					throw new IOException("Failed to write " + file);
+				}
+			}
+			return delta;
+		}
+
+		private void scan(File dir, String prefix, Map<String, Entry> previous, long previousScan, Writer w, Delta delta) throws IOException {
+			String[] names = dir.list();
+			if(names == null)
+				return;
+			Arrays.sort(names);
+			for(String name : names) {
+				File f = new File(dir, name);
+				String path = prefix + name;
+				if(f.isDirectory()) {
+					// do not follow links out of the workspace
+					if(!Util.isSymlink(f))
+						scan(f, path + '/', previous, previousScan, w, delta);
+					continue;
+				}
+				if(!f.isFile())
+					continue;
+
+				delta.files++;
+				long size = f.length();
+				long mtime = f.lastModified();
+				Entry old = previous.remove(path);
+				String digest;
+				if(old != null && old.size == size && old.mtime == mtime && mtime < previousScan - MTIME_RESOLUTION) {
+					digest = old.digest;
+				} else {
+					digest = digest(f);
+					delta.hashed++;
+					if(old == null) {
+						delta.added++;
+						delta.changed(path, digest);
+					} else if(!old.digest.equals(digest)) {
+						delta.modified++;
+						delta.changed(path, digest);
+					}
+				}
+				w.write(digest + '\t' + size + '\t' + mtime + '\t' + escape(path) + '\n');
+			}
+		}
+
+		/**
+		 * Reads a manifest.
+		 *
+		 * @return
+		 *      The time of the scan the manifest was written by, -1 if it is
+		 *      not a manifest.
+		 */
+		private static long read(File file, Map<String, Entry> entries) throws IOException {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line = r.readLine();
+				if(line == null || !line.startsWith(HEADER))
+					return -1;
+				long scan = Long.parseLong(line.substring(HEADER.length()));
+				while((line = r.readLine()) != null) {
+					String[] fields = line.split("\t", 4);
+					if(fields.length == 4)
+						entries.put(unescape(fields[3]), new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				}
+				return scan;
+			} catch (NumberFormatException e) {
+				// a damaged manifest, start over
+				entries.clear();
+				return -1;
+			} finally {
+				r.close();
+			}
+		}
+
+		private static String digest(File f) throws IOException {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("MD5 is not available: " + e);
+			}
+			InputStream in = new FileInputStream(f);
+			try {
+				byte[] buf = new byte[65536];
+				int n;
+				while((n = in.read(buf)) >= 0)
+					md.update(buf, 0, n);
+			} finally {
+				in.close();
+			}
+			return Util.toHexString(md.digest());
+		}
+	}
+
+	private static String escape(String path) {
+		return path.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String path) {
+		if(path.indexOf('\\') < 0)
+			return path;
+		StringBuilder b = new StringBuilder(path.length());
+		for(int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if(c == '\\' && i + 1 < path.length()) {
+				c = path.charAt(++i);
+				if(c == 't')
+					c = '\t';
+				else if(c == 'n')
+					c = '\n';
+			}
+			b.append(c);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * One file of a manifest.
+	 */
+	private static final class Entry {
+		final String digest;
+		final long size;
+		final long mtime;
+
+		Entry(String digest, long size, long mtime) {
+			this.digest = digest;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+}
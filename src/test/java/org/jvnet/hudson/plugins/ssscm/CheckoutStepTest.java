@@ -0,0 +1,74 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import hudson.AbortException;
+
+/**
+ * Tests the validation of checkout steps.
+ */
+public class CheckoutStepTest extends TestCase {
+
+	public void testDirectories() {
+		assertNull(CheckoutStep.checkDirectory("lib"));
+		assertNull(CheckoutStep.checkDirectory("modules/lib"));
+		assertNull(CheckoutStep.checkDirectory("lib..old"));
+		assertNotNull(CheckoutStep.checkDirectory("/tmp/lib"));
+		assertNotNull(CheckoutStep.checkDirectory("\\\\server\\share"));
+		assertNotNull(CheckoutStep.checkDirectory("C:\\lib"));
+		assertNotNull(CheckoutStep.checkDirectory(".."));
+		assertNotNull(CheckoutStep.checkDirectory("lib/../../x"));
+		assertNotNull(CheckoutStep.checkDirectory("lib\\..\\..\\x"));
+	}
+
+	public void testValidSteps() throws AbortException {
+		CheckoutStep.validate(Arrays.asList(
+				new CheckoutStep("app", null, "true"),
+				new CheckoutStep("lib", "modules/lib", "true")));
+	}
+
+	public void testNameIsTheDefaultDirectory() {
+		assertInvalid(new CheckoutStep("../app", null, "true"));
+	}
+
+	public void testDuplicateNames() {
+		assertInvalid(new CheckoutStep("app", "a", "true"), new CheckoutStep("app", "b", "true"));
+	}
+
+	public void testDuplicateDirectories() {
+		assertInvalid(new CheckoutStep("app", "src", "true"), new CheckoutStep("lib", "./src/", "true"));
+		assertInvalid(new CheckoutStep("app", null, "true"), new CheckoutStep("lib", "app", "true"));
+	}
+
+	private static void assertInvalid(CheckoutStep... steps) {
+		try {
+			CheckoutStep.validate(Arrays.asList(steps));
+			fail("Accepted invalid checkout steps");
+		} catch (AbortException e) {
+			// expected
+		}
+	}
+}
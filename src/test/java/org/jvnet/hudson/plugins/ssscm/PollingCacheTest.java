@@ -0,0 +1,167 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import hudson.AbortException;
+import hudson.FilePath;
+
+/**
+ * Tests the reuse of polling shell results and the sharing of running polls.
+ */
+public class PollingCacheTest extends TestCase {
+
+	public void testResultExpires() throws Exception {
+		PollingCache cache = PollingCache.of(new FilePath(new File(".")));
+		PollingCache.Result result = new PollingCache.Result(0, "out", null);
+		cache.put("expires", result, 60000);
+
+		assertSame(result, cache.get("expires", 60000));
+		assertNull(cache.get("expires", 0));
+		assertNull(cache.get("missing", 60000));
+	}
+
+	public void testPutDropsExpiredResults() throws Exception {
+		PollingCache cache = PollingCache.of(new FilePath(new File(".")));
+		cache.put("old", new PollingCache.Result(0, null, null), 60000);
+		cache.put("new", new PollingCache.Result(1, null, null), 0);
+
+		// expired for the ttl of the last put, so it was dropped
+		assertNull(cache.get("old", 60000));
+		assertEquals(1, cache.get("new", 60000).exitCode);
+	}
+
+	public void testKeyOnlyDependsOnReferencedVariables() {
+		Map<String,String> env = new HashMap<String,String>();
+		env.put("REPO", "a");
+		env.put("OTHER", "1");
+		String key = PollingCache.key("check $REPO", env, false, null);
+
+		env.put("OTHER", "2");
+		assertEquals(key, PollingCache.key("check $REPO", env, false, null));
+
+		env.put("REPO", "b");
+		assertFalse(key.equals(PollingCache.key("check $REPO", env, false, null)));
+	}
+
+	public void testKeyDependsOnOutputAndDirectory() {
+		Map<String,String> env = new HashMap<String,String>();
+		String rc = PollingCache.key("check", env, false, null);
+		String output = PollingCache.key("check", env, true, null);
+		String dir = PollingCache.key("check", env, false, "/ws/a");
+
+		assertTrue(rc.startsWith("rc:"));
+		assertTrue(output.startsWith("output:"));
+		assertFalse(rc.equals(dir));
+		assertFalse(dir.equals(PollingCache.key("check", env, false, "/ws/b")));
+		assertEquals(dir, PollingCache.key("check", env, false, "/ws/a"));
+	}
+
+	public void testForcedOnce() {
+		assertFalse(PollingCache.takeForced("forced"));
+		PollingCache.force("forced");
+		assertFalse(PollingCache.takeForced("other"));
+		assertTrue(PollingCache.takeForced("forced"));
+		assertFalse(PollingCache.takeForced("forced"));
+	}
+
+	public void testPassengerGetsPilotResult() throws Exception {
+		PollingCache.Flight flight = PollingCache.board("shared");
+		assertTrue(flight.isPilot());
+
+		Passenger passenger = new Passenger("shared");
+		passenger.start();
+		passenger.join(5000);
+		assertSame(flight, passenger.flight);
+		assertFalse(passenger.pilot);
+
+		Waiter waiter = new Waiter(flight);
+		waiter.start();
+		PollingCache.Result result = new PollingCache.Result(0, "out", null);
+		flight.land(result);
+		waiter.join(5000);
+		assertSame(result, waiter.result);
+
+		// the next poll starts a new flight
+		PollingCache.Flight next = PollingCache.board("shared");
+		assertNotSame(flight, next);
+		next.land(null);
+	}
+
+	public void testFailedFlight() throws Exception {
+		PollingCache.Flight flight = PollingCache.board("failing");
+		Waiter waiter = new Waiter(flight);
+		waiter.start();
+		flight.land(null);
+		waiter.join(5000);
+		assertNull(waiter.result);
+		assertEquals("The poll this poll waited for failed", waiter.failure.getMessage());
+	}
+
+	/**
+	 * Boards a flight from another thread.
+	 */
+	private static final class Passenger extends Thread {
+		private final String key;
+		volatile PollingCache.Flight flight;
+		volatile boolean pilot;
+
+		Passenger(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			flight = PollingCache.board(key);
+			pilot = flight.isPilot();
+		}
+	}
+
+	/**
+	 * Waits for the result of a flight in another thread.
+	 */
+	private static final class Waiter extends Thread {
+		private final PollingCache.Flight flight;
+		volatile PollingCache.Result result;
+		volatile Exception failure;
+
+		Waiter(PollingCache.Flight flight) {
+			this.flight = flight;
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = flight.await();
+			} catch (AbortException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				failure = e;
+			}
+		}
+	}
+}
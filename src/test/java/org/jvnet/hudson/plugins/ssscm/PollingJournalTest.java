@@ -0,0 +1,181 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Tests replaying and compacting the journal of the polling state.
+ */
+public class PollingJournalTest extends TestCase {
+
+	/**
+	 * The length of the header of a journal.
+	 */
+	private static final int HEADER = 4;
+
+	/**
+	 * The length of a record setting the state of the job named "job".
+	 */
+	private static final int PUT_JOB = 1 + 2 + 3 + 8 + 8;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("ssscm-polling", ".journal");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+		super.tearDown();
+	}
+
+	public void testMissingJournal() {
+		assertTrue(new PollingJournal(file).replay().isEmpty());
+		assertEquals(HEADER, file.length());
+	}
+
+	public void testReplay() {
+		PollingJournal journal = new PollingJournal(file);
+		journal.replay();
+		journal.put("job", 1, 1);
+		journal.put("other", 2, 0);
+		journal.put("job", 3, 1);
+		journal.remove("other");
+
+		Map<String, long[]> state = new PollingJournal(file).replay();
+		assertEquals(1, state.size());
+		assertEquals(3, state.get("job")[0]);
+		assertEquals(1, state.get("job")[1]);
+	}
+
+	public void testReplayAfterPartiallyWrittenRecord() throws IOException {
+		PollingJournal journal = new PollingJournal(file);
+		journal.replay();
+		journal.put("job", 1, 1);
+		journal.put("job", 2, 1);
+		journal.put("job", 3, 3);
+		long good = HEADER + 2 * PUT_JOB;
+		assertEquals(good + PUT_JOB, file.length());
+
+		// a crash in the middle of writing the last record
+		truncate(good + PUT_JOB / 2);
+
+		journal = new PollingJournal(file);
+		Map<String, long[]> state = journal.replay();
+		assertEquals(2, state.get("job")[0]);
+		assertEquals(good, file.length());
+
+		// appending continues after the last good record
+		journal.put("job", 4, 4);
+		assertEquals(4, new PollingJournal(file).replay().get("job")[0]);
+	}
+
+	public void testReplayAfterTruncatedLastRecord() throws IOException {
+		// a crash may cut the last record anywhere, even within its header
+		for(int cut = 1; cut < PUT_JOB; cut++) {
+			file.delete();
+			PollingJournal journal = new PollingJournal(file);
+			journal.replay();
+			journal.put("job", 1, 1);
+			journal.put("other", 2, 2);
+			journal.put("job", 3, 3);
+			long good = file.length() - PUT_JOB;
+			truncate(good + cut);
+
+			Map<String, long[]> state = new PollingJournal(file).replay();
+			assertEquals("cut after " + cut + " bytes", 1, state.get("job")[0]);
+			assertEquals("cut after " + cut + " bytes", 2, state.get("other")[0]);
+			assertEquals("cut after " + cut + " bytes", good, file.length());
+		}
+	}
+
+	public void testReplayAfterTruncatedRemoval() throws IOException {
+		PollingJournal journal = new PollingJournal(file);
+		journal.replay();
+		journal.put("job", 1, 1);
+		long good = file.length();
+		journal.remove("job");
+		truncate(good + 3);
+
+		assertEquals(1, new PollingJournal(file).replay().get("job")[0]);
+		assertEquals(good, file.length());
+	}
+
+	public void testGarbageIsDropped() throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("not a journal".getBytes());
+		} finally {
+			out.close();
+		}
+
+		assertTrue(new PollingJournal(file).replay().isEmpty());
+		assertEquals(HEADER, file.length());
+	}
+
+	public void testCompactionThreshold() {
+		PollingJournal journal = new PollingJournal(file);
+		journal.replay();
+		// with one job, the journal may hold 2 + 1000 records
+		for(int i = 1; i <= 1002; i++)
+			journal.put("job", i, 0);
+		assertEquals(HEADER + 1002 * PUT_JOB, file.length());
+
+		journal.put("job", 1003, 0);
+		assertEquals(HEADER + PUT_JOB, file.length());
+		assertEquals(1003, new PollingJournal(file).replay().get("job")[0]);
+	}
+
+	public void testCompactionAfterRemoval() {
+		PollingJournal journal = new PollingJournal(file);
+		journal.replay();
+		for(int i = 1; i <= 1002; i++)
+			journal.put("job", i, 0);
+		journal.remove("job");
+
+		// the removal leaves no job, which allows only 1000 records
+		assertTrue(new PollingJournal(file).replay().isEmpty());
+		assertEquals(HEADER, file.length());
+	}
+
+	private void truncate(long length) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(length);
+		} finally {
+			f.close();
+		}
+	}
+}
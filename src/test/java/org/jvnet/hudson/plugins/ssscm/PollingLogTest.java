@@ -0,0 +1,96 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ * Tests the bounded capture of the polling output.
+ */
+public class PollingLogTest extends TestCase {
+
+	/**
+	 * Keeps a head of 2 and a tail of 6 bytes, the complete output up to
+	 * 128 bytes.
+	 */
+	private PollingLog log = new PollingLog(8);
+
+	public void testShortOutput() throws IOException {
+		write("abcde");
+		assertEquals("abcde", read(false));
+		assertEquals("abcde", read(true));
+	}
+
+	public void testOutputFillingHeadAndTail() throws IOException {
+		write("abcdefgh");
+		assertEquals("abcdefgh", read(false));
+	}
+
+	public void testSkippedOutput() throws IOException {
+		write("abcdefghijkl");
+		assertEquals("ab\n[... 4 bytes of polling output skipped ...]\nghijkl", read(false));
+		assertEquals("abcdefghijkl", read(true));
+	}
+
+	public void testRingBufferWrapsAround() throws IOException {
+		// written in pieces, so that the tail wraps around in between
+		write("abc");
+		write("defg");
+		write("hijkl");
+		log.write('m');
+		assertEquals("ab\n[... 5 bytes of polling output skipped ...]\nhijklm", read(false));
+	}
+
+	public void testWriteLongerThanTail() throws IOException {
+		write("ab");
+		write("0123456789");
+		assertEquals("ab\n[... 4 bytes of polling output skipped ...]\n456789", read(false));
+	}
+
+	public void testCompleteOutputIsDroppedPastItsLimit() throws IOException {
+		StringBuilder output = new StringBuilder();
+		for(int i = 0; i < PollingLog.FULL_FACTOR * 8; i++)
+			output.append((char)('a' + i % 26));
+		write(output.toString());
+		assertEquals(output.toString(), read(true));
+
+		write("!");
+		String logged = read(true);
+		assertTrue(logged, logged.startsWith("ab\n[... 121 bytes of polling output skipped ...]\n"));
+		assertTrue(logged, logged.endsWith("!"));
+	}
+
+	private void write(String text) {
+		byte[] bytes = text.getBytes();
+		log.write(bytes, 0, bytes.length);
+	}
+
+	private String read(boolean complete) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		log.writeTo(out, complete);
+		return out.toString();
+	}
+}
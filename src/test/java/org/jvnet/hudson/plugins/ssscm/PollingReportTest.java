@@ -0,0 +1,119 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+import hudson.scm.PollingResult;
+
+/**
+ * Tests the parser of the report the polling shell writes to
+ * <tt>$SSSCM_POLL_RESULT</tt>.
+ */
+public class PollingReportTest extends TestCase {
+
+	public void testNoReport() throws IOException {
+		assertNull(PollingReport.parse(null));
+	}
+
+	public void testKeyValueLines() throws IOException {
+		PollingReport report = PollingReport.parse("changed=true\nrevision = 4711\nquiet-period=30\nreason=new tag v1.2\n");
+		assertEquals(PollingResult.Change.SIGNIFICANT, report.getChange());
+		assertEquals("4711", report.getRevision());
+		assertEquals(30, report.getQuietPeriod());
+		assertEquals("new tag v1.2", report.getReason());
+	}
+
+	public void testDefaults() throws IOException {
+		PollingReport report = PollingReport.parse("");
+		assertNull(report.getChange());
+		assertNull(report.getRevision());
+		assertEquals(-1, report.getQuietPeriod());
+		assertNull(report.getReason());
+	}
+
+	public void testCommentsBlankLinesAndUnknownKeysAreSkipped() throws IOException {
+		PollingReport report = PollingReport.parse("# the result\n\n  \nbranch=master\nchanged=no\n");
+		assertEquals(PollingResult.Change.NONE, report.getChange());
+		assertNull(report.getRevision());
+	}
+
+	public void testLaterValuesOverrideEarlierOnes() throws IOException {
+		PollingReport report = PollingReport.parse("changed=false\nrevision=1\nchanged=incomparable\nrevision=2\n");
+		assertEquals(PollingResult.Change.INCOMPARABLE, report.getChange());
+		assertEquals("2", report.getRevision());
+	}
+
+	public void testChangeValues() throws IOException {
+		assertEquals(PollingResult.Change.SIGNIFICANT, PollingReport.parse("changed=YES").getChange());
+		assertEquals(PollingResult.Change.SIGNIFICANT, PollingReport.parse("changed=1").getChange());
+		assertEquals(PollingResult.Change.NONE, PollingReport.parse("changed=0").getChange());
+		assertEquals(PollingResult.Change.INSIGNIFICANT, PollingReport.parse("changed=insignificant").getChange());
+	}
+
+	public void testEmptyRevisionIsNoRevision() throws IOException {
+		assertNull(PollingReport.parse("revision=").getRevision());
+	}
+
+	public void testValueMayContainEquals() throws IOException {
+		assertEquals("a=b", PollingReport.parse("reason=a=b").getReason());
+	}
+
+	public void testJsonLine() throws IOException {
+		PollingReport report = PollingReport.parse("{\"changed\":\"true\", \"revision\":\"abc\", \"quiet-period\":\"5\"}");
+		assertEquals(PollingResult.Change.SIGNIFICANT, report.getChange());
+		assertEquals("abc", report.getRevision());
+		assertEquals(5, report.getQuietPeriod());
+	}
+
+	public void testMalformedLine() {
+		assertMalformed("changed");
+	}
+
+	public void testMalformedChange() {
+		assertMalformed("changed=maybe");
+	}
+
+	public void testMalformedQuietPeriod() {
+		assertMalformed("quiet-period=soon");
+	}
+
+	public void testMalformedJson() {
+		assertMalformed("{\"changed\":");
+	}
+
+	public void testIsUsedBy() {
+		assertTrue(PollingReport.isUsedBy("echo changed=true > $SSSCM_POLL_RESULT"));
+		assertFalse(PollingReport.isUsedBy("exit 1"));
+	}
+
+	private static void assertMalformed(String text) {
+		try {
+			PollingReport.parse(text);
+			fail("Parsed " + text);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
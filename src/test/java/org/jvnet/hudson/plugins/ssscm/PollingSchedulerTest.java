@@ -0,0 +1,143 @@
+/**
+ * The MIT License
+ *
+ * Copyright (c) 2011, Richard Sczepczenski
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jvnet.hudson.plugins.ssscm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import hudson.AbortException;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Tests the limits on concurrent polling shells.
+ */
+public class PollingSchedulerTest extends TestCase {
+
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final TaskListener listener = new StreamTaskListener(log);
+
+	public void testNoLimits() throws Exception {
+		PollingScheduler.Slot a = PollingScheduler.acquire(null, 0, 0, listener);
+		PollingScheduler.Slot b = PollingScheduler.acquire("unlimited", 0, 0, listener);
+		a.release();
+		b.release();
+		assertEquals(0, log.size());
+	}
+
+	public void testKeyLimit() throws Exception {
+		PollingScheduler.Slot a = PollingScheduler.acquire("limited", 2, 0, listener);
+		PollingScheduler.Slot b = PollingScheduler.acquire("limited", 2, 0, listener);
+		try {
+			PollingScheduler.acquire("limited", 2, 0, 50, listener);
+			fail("Acquired a third slot of a key limited to 2");
+		} catch (AbortException e) {
+			assertEquals("2 polls of limited still running, skipping this poll", e.getMessage());
+		}
+
+		// other keys are not affected
+		PollingScheduler.acquire("other", 2, 0, 50, listener).release();
+
+		a.release();
+		PollingScheduler.acquire("limited", 2, 0, 50, listener).release();
+		b.release();
+	}
+
+	public void testSaturatedKeyDoesNotHoldGlobalSlots() throws Exception {
+		PollingScheduler.Slot stuck = PollingScheduler.acquire("stuck", 1, 0, listener);
+		try {
+			PollingScheduler.acquire("stuck", 1, 1, 50, listener);
+			fail("Acquired a slot of a saturated key");
+		} catch (AbortException e) {
+			// expected
+		}
+
+		// the only global slot is still free
+		PollingScheduler.Slot other = PollingScheduler.acquire("healthy", 1, 1, 50, listener);
+		other.release();
+		stuck.release();
+	}
+
+	public void testWaitingPollGetsReleasedKeySlot() throws Exception {
+		PollingScheduler.Slot held = PollingScheduler.acquire("handover", 1, 0, listener);
+		final List<String> acquired = Collections.synchronizedList(new ArrayList<String>());
+		Thread waiter = poll("handover", 1, 0, 5000, "waiter", acquired);
+		awaitWaiting(waiter);
+		assertTrue(acquired.isEmpty());
+
+		held.release();
+		waiter.join(5000);
+		assertEquals(Collections.singletonList("waiter"), acquired);
+	}
+
+	public void testGlobalSlotsAreServedInArrivalOrder() throws Exception {
+		PollingScheduler.Slot held = PollingScheduler.acquire(null, 0, 1, listener);
+		List<String> acquired = Collections.synchronizedList(new ArrayList<String>());
+		Thread first = poll(null, 0, 1, 0, "first", acquired);
+		awaitWaiting(first);
+		Thread second = poll(null, 0, 1, 0, "second", acquired);
+		awaitWaiting(second);
+
+		held.release();
+		first.join(5000);
+		second.join(5000);
+		List<String> expected = new ArrayList<String>();
+		expected.add("first");
+		expected.add("second");
+		assertEquals(expected, acquired);
+	}
+
+	/**
+	 * Starts a poll acquiring a slot, recording its name once it got it and
+	 * releasing the slot right away.
+	 */
+	private Thread poll(final String key, final int keyLimit, final int globalLimit, final long keyWait,
+			final String name, final List<String> acquired) {
+		Thread t = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					PollingScheduler.Slot slot = PollingScheduler.acquire(key, keyLimit, globalLimit, keyWait, listener);
+					acquired.add(name);
+					slot.release();
+				} catch (Exception e) {
+					acquired.add(name + " failed: " + e);
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static void awaitWaiting(Thread t) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+			if(System.currentTimeMillis() > deadline)
+				fail(t.getName() + " is not waiting for a slot");
+			Thread.sleep(10);
+		}
+	}
+}